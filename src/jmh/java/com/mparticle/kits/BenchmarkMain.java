@@ -0,0 +1,159 @@
+package com.mparticle.kits;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks with the GC profiler, and compares throughput and allocation per operation
+ * with the checked-in baseline. Configured through system properties:
+ *
+ * jmh.include           benchmark regex, defaults to every benchmark
+ * jmh.baseline          baseline file, defaults to src/jmh/baseline.json
+ * jmh.results           results file, defaults to build/reports/jmh/results.json
+ * jmh.tolerance         allowed relative regression, defaults to 0.10
+ * jmh.updateBaseline    replace the baseline with this run's results
+ * jmh.failOnRegression  exit with an error if any benchmark regressed
+ *
+ * A run with an empty or missing baseline records its results as the baseline, to be committed
+ * from the reference machine. A benchmark with no baseline entry counts as a regression.
+ */
+public class BenchmarkMain {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws Exception {
+        File baseline = new File(System.getProperty("jmh.baseline", "src/jmh/baseline.json"));
+        File results = new File(System.getProperty("jmh.results", "build/reports/jmh/results.json"));
+        double tolerance = Double.parseDouble(System.getProperty("jmh.tolerance", "0.10"));
+        results.getParentFile().mkdirs();
+        boolean updateBaseline = Boolean.getBoolean("jmh.updateBaseline");
+        boolean recordBaseline = !updateBaseline && (!baseline.isFile() || new JSONArray(read(baseline)).length() == 0);
+
+        Options options = new OptionsBuilder()
+                .include(System.getProperty("jmh.include", "com.mparticle.kits.*Benchmark.*"))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(results.getPath())
+                .build();
+        new Runner(options).run();
+
+        if (updateBaseline || recordBaseline) {
+            write(baseline, read(results));
+            System.out.println(recordBaseline
+                    ? "There was no baseline to compare with, recorded this run as " + baseline + ". Commit it if this is the reference machine"
+                    : "Updated baseline " + baseline);
+            return;
+        }
+        int regressions = compare(new JSONArray(read(baseline)), new JSONArray(read(results)), tolerance);
+        if (regressions > 0 && Boolean.getBoolean("jmh.failOnRegression")) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the number of benchmarks that regressed by more than the tolerance, or that have no
+     * baseline to compare with
+     */
+    static int compare(JSONArray baseline, JSONArray results, double tolerance) throws JSONException {
+        Map<String, JSONObject> baselineByKey = new HashMap<>();
+        for (int i = 0; i < baseline.length(); i++) {
+            JSONObject result = baseline.getJSONObject(i);
+            baselineByKey.put(key(result), result);
+        }
+        int regressions = 0;
+        System.out.println(String.format("%-70s %16s %16s %12s %12s", "Benchmark", "score", "baseline", "B/op", "baseline"));
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            JSONObject previous = baselineByKey.get(key(result));
+            JSONObject metric = result.getJSONObject("primaryMetric");
+            double score = metric.getDouble("score");
+            double allocation = allocation(result);
+            if (previous == null) {
+                regressions++;
+                System.out.println(String.format("%-70s %16.2f %16s %12.1f %12s  NO BASELINE", key(result), score, "-", allocation, "-"));
+                continue;
+            }
+            double previousScore = previous.getJSONObject("primaryMetric").getDouble("score");
+            double previousAllocation = allocation(previous);
+            //throughput regresses when it drops, average time regresses when it grows
+            boolean higherIsBetter = !metric.getString("scoreUnit").startsWith("us/") && !metric.getString("scoreUnit").startsWith("ns/");
+            double change = higherIsBetter ? (previousScore - score) / previousScore : (score - previousScore) / previousScore;
+            boolean regressed = change > tolerance || (previousAllocation >= 0 && allocation > previousAllocation * (1 + tolerance) + 16);
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format("%-70s %16.2f %16.2f %12.1f %12.1f%s", key(result), score, previousScore, allocation, previousAllocation, regressed ? "  REGRESSION" : ""));
+        }
+        return regressions;
+    }
+
+    private static String key(JSONObject result) throws JSONException {
+        StringBuilder key = new StringBuilder(result.getString("benchmark").replace("com.mparticle.kits.", ""));
+        JSONObject params = result.optJSONObject("params");
+        if (params != null) {
+            Iterator keys = params.keys();
+            while (keys.hasNext()) {
+                String param = (String) keys.next();
+                key.append(':').append(param).append('=').append(params.getString(param));
+            }
+        }
+        return key.toString();
+    }
+
+    private static double allocation(JSONObject result) throws JSONException {
+        JSONObject secondary = result.optJSONObject("secondaryMetrics");
+        if (secondary != null) {
+            Iterator keys = secondary.keys();
+            while (keys.hasNext()) {
+                String metric = (String) keys.next();
+                if (metric.endsWith("gc.alloc.rate.norm")) {
+                    return secondary.getJSONObject(metric).getDouble("score");
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(bytes, 0, offset, UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.mparticle.kits;
+
+import com.mparticle.MParticle;
+import com.mparticle.UserAttributeListener;
+import com.mparticle.identity.IdentityApi;
+import com.mparticle.identity.MParticleUser;
+import com.mparticle.mock.MockKitConfiguration;
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared fixtures for the benchmarks. Mocks are "stub only", so they don't record invocations and
+ * skew the allocation numbers.
+ */
+public class BenchmarkSupport {
+    static final long MPID = 42L;
+
+    static MParticleUser setUpMParticle(int userAttributeCount) {
+        MParticle mockMParticle = Mockito.mock(MParticle.class, Mockito.withSettings().stubOnly());
+        IdentityApi mockIdentityApi = Mockito.mock(IdentityApi.class, Mockito.withSettings().stubOnly());
+        MParticleUser user = createUser(userAttributeCount);
+        Mockito.when(mockMParticle.Identity()).thenReturn(mockIdentityApi);
+        Mockito.when(mockMParticle.getEnvironment()).thenReturn(MParticle.Environment.Production);
+        Mockito.when(mockIdentityApi.getCurrentUser()).thenReturn(user);
+        Mockito.when(mockIdentityApi.getDeviceApplicationStamp()).thenReturn("b8d0a6e2-5d6b-4b4b-9b0a-2f4d1c9e7a11");
+        MParticle.setInstance(mockMParticle);
+        return user;
+    }
+
+    static MParticleUser createUser(int userAttributeCount) {
+        final Map<String, String> userAttributes = new HashMap<>();
+        for (int i = 0; i < userAttributeCount; i++) {
+            userAttributes.put("attribute" + i, "value" + i);
+        }
+        Map<MParticle.IdentityType, String> identities = new HashMap<>();
+        identities.put(MParticle.IdentityType.CustomerId, "customer-1234");
+        identities.put(MParticle.IdentityType.Email, "user@example.com");
+        identities.put(MParticle.IdentityType.Other, "other");
+        identities.put(MParticle.IdentityType.Other2, "other2");
+        identities.put(MParticle.IdentityType.Other3, "other3");
+        identities.put(MParticle.IdentityType.Other4, "other4");
+
+        MParticleUser user = Mockito.mock(MParticleUser.class, Mockito.withSettings().stubOnly());
+        Mockito.when(user.getId()).thenReturn(MPID);
+        Mockito.when(user.getUserIdentities()).thenReturn(identities);
+        Mockito.when(user.getUserAttributes(Mockito.any(UserAttributeListener.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                UserAttributeListener listener = invocation.getArgument(0);
+                listener.onUserAttributesReceived(userAttributes, new HashMap<String, List<String>>(), MPID);
+                return null;
+            }
+        });
+        return user;
+    }
+
+    static OptimizelyClient createClient() {
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class, Mockito.withSettings().stubOnly());
+        Mockito.when(client.isValid()).thenReturn(true);
+        return client;
+    }
+
+    /**
+     * An OptimizelyKit configured the way the mParticle SDK would, without going through the kit manager
+     */
+    static class BenchmarkKit extends OptimizelyKit {
+        private final KitConfiguration configuration;
+
+        BenchmarkKit(String userIdField) {
+            this(Collections.singletonMap(OptimizelyKit.USER_ID_FIELD_KEY, userIdField));
+        }
+
+        BenchmarkKit(Map<String, String> settings) {
+            try {
+                configuration = MockKitConfiguration.createKitConfiguration(new JSONObject()
+                        .put("id", MParticle.ServiceProviders.OPTIMIZELY)
+                        .put("as", new JSONObject(settings)));
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            compileUserIdResolver(getSettings());
+        }
+
+        @Override
+        public KitConfiguration getConfiguration() {
+            return configuration;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.mparticle.kits;
+
+import com.mparticle.commerce.CommerceEvent;
+import com.mparticle.commerce.Product;
+import com.mparticle.commerce.TransactionAttributes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * logEvent(CommerceEvent) for purchases of increasing size, including the cost of expansion
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommerceEventBenchmark {
+
+    @Param({"1", "10", "30", "100"})
+    public int productCount;
+
+    private OptimizelyKit kit;
+    private CommerceEvent commerceEvent;
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.setUpMParticle(10);
+        OptimizelyKit.setOptimizelyClient(BenchmarkSupport.createClient());
+        kit = new BenchmarkSupport.BenchmarkKit(OptimizelyKit.USER_ID_MPID_VALUE);
+        CommerceEvent.Builder builder = new CommerceEvent.Builder(Product.PURCHASE, createProduct(0))
+                .transactionAttributes(new TransactionAttributes("order-1").setRevenue(19.99 * productCount));
+        for (int i = 1; i < productCount; i++) {
+            builder.addProduct(createProduct(i));
+        }
+        commerceEvent = builder.build();
+    }
+
+    private Product createProduct(int i) {
+        return new Product.Builder("product" + i, "sku" + i, 19.99).quantity(1).build();
+    }
+
+    @Benchmark
+    public List<ReportingMessage> logCommerceEvent() {
+        return kit.logEvent(commerceEvent);
+    }
+}
@@ -0,0 +1,303 @@
+package com.mparticle.kits;
+
+import com.mparticle.MParticle;
+import com.mparticle.UserAttributeListener;
+import com.mparticle.identity.IdentityApi;
+import com.mparticle.identity.MParticleUser;
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays recorded sessions (see {@link SessionTrace}) through an OptimizelyKit, against a stub
+ * OptimizelyClient that counts track() calls, and reports throughput, per-event latency, allocation
+ * per event and what the pending queue did. Configured through system properties:
+ *
+ * load.trace               recorded sessions, defaults to src/jmh/sessions/sample.jsonl
+ * load.threads             concurrent producers, the sessions are split between them. Defaults to 4
+ * load.rate                events per second across all producers, 0 (the default) for as fast as possible
+ * load.speed               replay each session at its recorded pace, sped up by this factor. Overrides load.rate
+ * load.iterations          times each producer replays its sessions, defaults to 20
+ * load.warmupIterations    replays on a separate kit before measuring, defaults to 5
+ * load.clientDelayMillis   hold the OptimizelyClient back this long, so events queue and are replayed. Defaults to 0
+ * load.trackMicros         time the stub client spends in each track() call, defaults to 0
+ * load.settings            kit settings, as a JSON object, e.g. {"asyncDispatch": "true", "pendingQueueCapacity": "1000"}
+ *
+ * When events are paced, latency is measured from when each event was due rather than from when
+ * it was sent, so a producer falling behind shows up in the percentiles. Allocation is what the
+ * producing threads allocated, divided by the events they sent.
+ */
+public class LoadGenerator {
+    private static final ThreadLocal<SessionTrace.Session> sSession = new ThreadLocal<>();
+    private static final ThreadLocal<Map<String, String>> sUserAttributes = new ThreadLocal<>();
+
+    private final SessionTrace mTrace;
+    private final int mThreads;
+    private final double mRate;
+    private final double mSpeed;
+    private final long mClientDelayMillis;
+    private final long mTrackNanos;
+    private final Map<String, String> mSettings;
+    private final AtomicLong mTracked = new AtomicLong();
+
+    LoadGenerator(SessionTrace trace, int threads, double rate, double speed, long clientDelayMillis, long trackMicros, Map<String, String> settings) {
+        mTrace = trace;
+        mThreads = Math.max(1, Math.min(threads, trace.sessions.size()));
+        mRate = rate;
+        mSpeed = speed;
+        mClientDelayMillis = clientDelayMillis;
+        mTrackNanos = TimeUnit.MICROSECONDS.toNanos(trackMicros);
+        mSettings = settings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File file = new File(System.getProperty("load.trace", "src/jmh/sessions/sample.jsonl"));
+        SessionTrace trace = SessionTrace.read(file);
+        if (trace.eventCount == 0) {
+            System.err.println("No events in " + file);
+            System.exit(1);
+        }
+        Map<String, String> settings = new HashMap<>();
+        settings.put(OptimizelyKit.USER_ID_FIELD_KEY, OptimizelyKit.USER_ID_MPID_VALUE);
+        settings.putAll(parseSettings(System.getProperty("load.settings", "{}")));
+
+        LoadGenerator generator = new LoadGenerator(trace,
+                Integer.getInteger("load.threads", 4),
+                Double.parseDouble(System.getProperty("load.rate", "0")),
+                Double.parseDouble(System.getProperty("load.speed", "0")),
+                Long.getLong("load.clientDelayMillis", 0),
+                Long.getLong("load.trackMicros", 0),
+                settings);
+        System.out.println(String.format(Locale.US, "%d sessions, %d events from %s, %d producers",
+                trace.sessions.size(), trace.eventCount, file, generator.mThreads));
+
+        int warmupIterations = Integer.getInteger("load.warmupIterations", 5);
+        if (warmupIterations > 0) {
+            generator.run(warmupIterations);
+        }
+        generator.run(Integer.getInteger("load.iterations", 20)).print(System.out);
+        System.exit(0);
+    }
+
+    Result run(int iterations) throws InterruptedException {
+        final OptimizelyClient client = createClient();
+        setUpMParticle();
+        OptimizelyKit.setOptimizelyClient(client);
+        final BenchmarkSupport.BenchmarkKit kit = new BenchmarkSupport.BenchmarkKit(mSettings);
+        kit.onKitCreate(kit.getSettings(), null);
+        if (mClientDelayMillis > 0) {
+            //take the client back, and hand it over through onStart() as a download would
+            OptimizelyKit.setOptimizelyClient(null);
+            Thread starter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(mClientDelayMillis);
+                    } catch (InterruptedException ignore) {
+
+                    }
+                    kit.onStart(client);
+                }
+            }, "load-client");
+            starter.setDaemon(true);
+            starter.start();
+        }
+        mTracked.set(0);
+
+        final KitMetrics.Histogram latency = new KitMetrics.Histogram();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong allocated = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(mThreads);
+        final long intervalNanos = mRate > 0 && mSpeed <= 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * mThreads / mRate) : 0;
+        long start = System.nanoTime();
+        for (int t = 0; t < mThreads; t++) {
+            final List<SessionTrace.Session> sessions = new ArrayList<>();
+            for (int i = t; i < mTrace.sessions.size(); i += mThreads) {
+                sessions.add(mTrace.sessions.get(i));
+            }
+            final int iterationCount = iterations;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long allocatedBefore = allocatedBytes();
+                    long count = 0;
+                    long due = System.nanoTime();
+                    for (int iteration = 0; iteration < iterationCount; iteration++) {
+                        for (SessionTrace.Session session : sessions) {
+                            sSession.set(session);
+                            long sessionStart = System.nanoTime();
+                            for (SessionTrace.Event event : session.events) {
+                                if (mSpeed > 0) {
+                                    due = sessionStart + (long) (TimeUnit.MILLISECONDS.toNanos(event.offsetMillis) / mSpeed);
+                                } else if (intervalNanos > 0) {
+                                    due += intervalNanos;
+                                }
+                                long now = System.nanoTime();
+                                if (due > now) {
+                                    LockSupport.parkNanos(due - now);
+                                }
+                                long eventStart = intervalNanos > 0 || mSpeed > 0 ? due : System.nanoTime();
+                                sUserAttributes.set(event.userAttributes);
+                                if (event.mpEvent != null) {
+                                    kit.logEvent(event.mpEvent);
+                                } else {
+                                    kit.logEvent(event.commerceEvent);
+                                }
+                                latency.record(System.nanoTime() - eventStart);
+                                count++;
+                            }
+                        }
+                    }
+                    allocated.addAndGet(allocatedBytes() - allocatedBefore);
+                    sent.addAndGet(count);
+                    done.countDown();
+                }
+            }, "load-producer-" + t).start();
+        }
+        done.await();
+        long producedNanos = System.nanoTime() - start;
+        //wait for events still queued, replaying or in the dispatch buffer
+        long idleTimeout = Math.max(mClientDelayMillis * 2, TimeUnit.SECONDS.toMillis(30));
+        boolean idle = kit.awaitIdle(idleTimeout, TimeUnit.MILLISECONDS);
+        long drainedNanos = System.nanoTime() - start;
+        KitMetrics.Snapshot metrics = kit.getMetrics();
+        kit.onKitDestroy();
+        OptimizelyKit.setOptimizelyClient(null);
+        return new Result(sent.get(), mTracked.get(), producedNanos, drainedNanos, idle, latency.snapshot(),
+                sent.get() > 0 && allocatedBytes() >= 0 ? allocated.get() / (double) sent.get() : -1, metrics);
+    }
+
+    static class Result {
+        final long sent;
+        final long tracked;
+        final long producedNanos;
+        final long drainedNanos;
+        final boolean drained;
+        final KitMetrics.HistogramSnapshot latency;
+        final double bytesPerEvent;
+        final KitMetrics.Snapshot metrics;
+
+        Result(long sent, long tracked, long producedNanos, long drainedNanos, boolean drained, KitMetrics.HistogramSnapshot latency, double bytesPerEvent, KitMetrics.Snapshot metrics) {
+            this.sent = sent;
+            this.tracked = tracked;
+            this.producedNanos = producedNanos;
+            this.drainedNanos = drainedNanos;
+            this.drained = drained;
+            this.latency = latency;
+            this.bytesPerEvent = bytesPerEvent;
+            this.metrics = metrics;
+        }
+
+        void print(PrintStream out) {
+            double seconds = producedNanos / 1e9;
+            out.println(String.format(Locale.US, "sent           %d events in %.2fs, %.0f events/s", sent, seconds, sent / seconds));
+            out.println(String.format(Locale.US, "tracked        %d Optimizely events, drained after %.2fs%s", tracked, drainedNanos / 1e9, drained ? "" : " (timed out)"));
+            out.println(String.format(Locale.US, "latency        p50 <= %s, p99 <= %s, p99.9 <= %s",
+                    micros(latency.getPercentileMicros(50)), micros(latency.getPercentileMicros(99)), micros(latency.getPercentileMicros(99.9))));
+            out.println(bytesPerEvent < 0 ? "allocation     not measured, this JVM can't report per thread allocation"
+                    : String.format(Locale.US, "allocation     %.0f bytes/event", bytesPerEvent));
+            out.println(String.format(Locale.US, "queue          %d queued, %d replayed, %d dropped, %d pending",
+                    metrics.getEventsQueued(), metrics.getEventsReplayed(), metrics.getEventsDropped(), metrics.getEventsPending()));
+            out.println(String.format(Locale.US, "filtered       %d untracked, %d sampled out, %d rate limited, %d duplicates, %d without a userId",
+                    metrics.getEventsUntracked(), metrics.getEventsSampledOut(), metrics.getEventsRateLimited(), metrics.getDedupHits(), metrics.getEventsSkippedNoUserId()));
+            out.println(String.format(Locale.US, "track() calls  p50 <= %s, p99 <= %s",
+                    micros(metrics.getTrackLatency().getPercentileMicros(50)), micros(metrics.getTrackLatency().getPercentileMicros(99))));
+        }
+
+        private static String micros(long micros) {
+            return micros == Long.MAX_VALUE ? "unbounded" : micros + "us";
+        }
+    }
+
+    /**
+     * A client that counts track() calls, optionally spending load.trackMicros in each of them
+     */
+    private OptimizelyClient createClient() {
+        OptimizelyClient client = BenchmarkSupport.createClient();
+        Answer<Object> track = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                if (mTrackNanos > 0) {
+                    long end = System.nanoTime() + mTrackNanos;
+                    while (System.nanoTime() < end) {
+                        //busy, like the SDK building and queueing an event
+                    }
+                }
+                mTracked.incrementAndGet();
+                return null;
+            }
+        };
+        Mockito.doAnswer(track).when(client).track(Mockito.anyString(), Mockito.anyString(), Mockito.<Map<String, ?>>any());
+        Mockito.doAnswer(track).when(client).track(Mockito.anyString(), Mockito.anyString(), Mockito.<Map<String, ?>>any(), Mockito.<Map<String, ?>>any());
+        return client;
+    }
+
+    /**
+     * The current user is whichever one the calling producer is replaying a session for
+     */
+    private static void setUpMParticle() {
+        BenchmarkSupport.setUpMParticle(0);
+        IdentityApi identityApi = MParticle.getInstance().Identity();
+        MParticleUser user = Mockito.mock(MParticleUser.class, Mockito.withSettings().stubOnly());
+        Mockito.when(user.getId()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                SessionTrace.Session session = sSession.get();
+                return session != null ? session.mpid : BenchmarkSupport.MPID;
+            }
+        });
+        Mockito.when(user.getUserAttributes(Mockito.any(UserAttributeListener.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                UserAttributeListener listener = invocation.getArgument(0);
+                SessionTrace.Session session = sSession.get();
+                Map<String, String> userAttributes = sUserAttributes.get();
+                listener.onUserAttributesReceived(userAttributes != null ? userAttributes : new HashMap<String, String>(),
+                        new HashMap<String, List<String>>(), session != null ? session.mpid : BenchmarkSupport.MPID);
+                return null;
+            }
+        });
+        Mockito.when(identityApi.getCurrentUser()).thenReturn(user);
+    }
+
+    private static Map<String, String> parseSettings(String json) throws JSONException {
+        JSONObject settings = new JSONObject(json);
+        Map<String, String> map = new HashMap<>();
+        Iterator keys = settings.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            map.put(key, settings.getString(key));
+        }
+        return map;
+    }
+
+    /**
+     * @return the bytes allocated by the calling thread so far, or -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
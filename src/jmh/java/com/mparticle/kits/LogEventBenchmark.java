@@ -0,0 +1,65 @@
+package com.mparticle.kits;
+
+import com.mparticle.MPEvent;
+import com.mparticle.MParticle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * logEvent(MPEvent) against a valid client, with the user's attributes already cached
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogEventBenchmark {
+
+    @Param({"10", "100"})
+    public int userAttributeCount;
+
+    private OptimizelyKit kit;
+    private MPEvent event;
+    private MPEvent eventWithValue;
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.setUpMParticle(userAttributeCount);
+        OptimizelyKit.setOptimizelyClient(BenchmarkSupport.createClient());
+        kit = new BenchmarkSupport.BenchmarkKit(OptimizelyKit.USER_ID_MPID_VALUE);
+        Map<String, String> info = new HashMap<>();
+        info.put("screen", "home");
+        info.put("position", "3");
+        event = new MPEvent.Builder("Scroll", MParticle.EventType.Navigation).info(info).build();
+        eventWithValue = new MPEvent.Builder("Checkout", MParticle.EventType.Transaction)
+                .info(info)
+                .addCustomFlag(OptimizelyKit.OPTIMIZELY_VALUE_KEY, "19.99")
+                .build();
+    }
+
+    @Benchmark
+    public List<ReportingMessage> logEvent() {
+        return kit.logEvent(event);
+    }
+
+    @Benchmark
+    public List<ReportingMessage> logEventWithCustomValue() {
+        return kit.logEvent(eventWithValue);
+    }
+}
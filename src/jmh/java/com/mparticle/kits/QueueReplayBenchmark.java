@@ -0,0 +1,85 @@
+package com.mparticle.kits;
+
+import com.mparticle.MPEvent;
+import com.mparticle.MParticle;
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queueing events while there is no client, and replaying them when the client starts
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueReplayBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+        OptimizelyKit kit;
+        MPEvent event;
+
+        @Setup
+        public void setUp() {
+            BenchmarkSupport.setUpMParticle(10);
+            OptimizelyKit.setOptimizelyClient(null);
+            kit = new BenchmarkSupport.BenchmarkKit(OptimizelyKit.USER_ID_MPID_VALUE);
+            event = new MPEvent.Builder("Scroll", MParticle.EventType.Navigation).build();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ReplayState {
+        @Param({"10", "100", "1000"})
+        public int queueSize;
+
+        OptimizelyKit kit;
+        OptimizelyClient client;
+        MPEvent event;
+
+        @Setup(Level.Trial)
+        public void setUpTrial() {
+            BenchmarkSupport.setUpMParticle(10);
+            client = BenchmarkSupport.createClient();
+            kit = new BenchmarkSupport.BenchmarkKit(OptimizelyKit.USER_ID_MPID_VALUE);
+            kit.setPendingEventStore(new InMemoryEventStore(queueSize));
+            event = new MPEvent.Builder("Scroll", MParticle.EventType.Navigation).build();
+        }
+
+        @Setup(Level.Invocation)
+        public void fillQueue() {
+            OptimizelyKit.setOptimizelyClient(null);
+            for (int i = 0; i < queueSize; i++) {
+                kit.logEvent(event);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void queue(QueueState state) {
+        state.kit.logEvent(state.event);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void replay(ReplayState state) {
+        state.kit.onStart(state.client);
+        state.kit.flush();
+    }
+}
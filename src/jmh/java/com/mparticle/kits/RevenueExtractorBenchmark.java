@@ -0,0 +1,57 @@
+package com.mparticle.kits;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Revenue extraction for a single expanded commerce event, compared with the String.format and
+ * Double.valueOf path it replaced
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RevenueExtractorBenchmark {
+
+    @Param({"19.99", "1.0E7", "1.234,56"})
+    public String total;
+
+    private final String productAction = "purchase";
+
+    @Benchmark
+    public long parseCents() {
+        return RevenueExtractor.parseCents(total);
+    }
+
+    @Benchmark
+    public int parseCentsDouble() {
+        try {
+            Double totalAmount = Double.valueOf(total);
+            return Double.valueOf(totalAmount * 100).intValue();
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    @Benchmark
+    public String plusOneName() {
+        return RevenueExtractor.plusOneName(productAction);
+    }
+
+    @Benchmark
+    public String plusOneNameFormat() {
+        return String.format(CommerceEventUtils.PLUSONE_NAME, productAction);
+    }
+}
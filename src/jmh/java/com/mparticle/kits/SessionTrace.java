@@ -0,0 +1,186 @@
+package com.mparticle.kits;
+
+import com.mparticle.MPEvent;
+import com.mparticle.MParticle;
+import com.mparticle.commerce.CommerceEvent;
+import com.mparticle.commerce.Product;
+import com.mparticle.commerce.TransactionAttributes;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recorded mParticle sessions, read from JSON lines. Each line is one event of a session:
+ *
+ * <pre>
+ * {"session": "s1", "mpid": 42, "offsetMillis": 0, "userAttributes": {"plan": "pro"},
+ *  "event": {"name": "Search", "type": "Search", "attributes": {"term": "shoes"}, "customFlags": {"Optimizely.Value": "3"}}}
+ * {"session": "s1", "mpid": 42, "offsetMillis": 5200,
+ *  "commerce": {"action": "purchase", "transactionId": "t1", "revenue": 19.99,
+ *               "products": [{"name": "Shoes", "sku": "sku-1", "price": 19.99, "quantity": 1}], "customFlags": {}}}
+ * </pre>
+ *
+ * offsetMillis is the time since the start of the session. userAttributes, when present, replace
+ * the user's attributes from that event on. Events are built once, when the trace is read, so
+ * building them isn't part of what the load generator measures.
+ */
+class SessionTrace {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final List<Session> sessions;
+    final int eventCount;
+
+    private SessionTrace(List<Session> sessions) {
+        this.sessions = sessions;
+        int eventCount = 0;
+        for (Session session : sessions) {
+            eventCount += session.events.size();
+        }
+        this.eventCount = eventCount;
+    }
+
+    static class Session {
+        final String id;
+        final long mpid;
+        final List<Event> events = new ArrayList<>();
+
+        Session(String id, long mpid) {
+            this.id = id;
+            this.mpid = mpid;
+        }
+    }
+
+    static class Event {
+        final long offsetMillis;
+        final Map<String, String> userAttributes;
+        final MPEvent mpEvent;
+        final CommerceEvent commerceEvent;
+
+        Event(long offsetMillis, Map<String, String> userAttributes, MPEvent mpEvent, CommerceEvent commerceEvent) {
+            this.offsetMillis = offsetMillis;
+            this.userAttributes = userAttributes;
+            this.mpEvent = mpEvent;
+            this.commerceEvent = commerceEvent;
+        }
+    }
+
+    static SessionTrace read(File file) throws IOException {
+        Map<String, Session> sessions = new LinkedHashMap<>();
+        Map<String, Map<String, String>> userAttributes = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    JSONObject record = new JSONObject(line);
+                    String id = record.optString("session", "default");
+                    Session session = sessions.get(id);
+                    if (session == null) {
+                        session = new Session(id, record.optLong("mpid", BenchmarkSupport.MPID));
+                        sessions.put(id, session);
+                    }
+                    JSONObject attributes = record.optJSONObject("userAttributes");
+                    if (attributes != null) {
+                        userAttributes.put(id, Collections.unmodifiableMap(toMap(attributes)));
+                    }
+                    Map<String, String> sessionAttributes = userAttributes.get(id);
+                    if (sessionAttributes == null) {
+                        sessionAttributes = Collections.emptyMap();
+                    }
+                    long offsetMillis = record.optLong("offsetMillis", 0);
+                    if (record.has("event")) {
+                        session.events.add(new Event(offsetMillis, sessionAttributes, toMPEvent(record.getJSONObject("event")), null));
+                    } else if (record.has("commerce")) {
+                        session.events.add(new Event(offsetMillis, sessionAttributes, null, toCommerceEvent(record.getJSONObject("commerce"))));
+                    }
+                } catch (JSONException | IllegalArgumentException ex) {
+                    throw new IOException(file + ":" + lineNumber + ": " + ex.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new SessionTrace(new ArrayList<>(sessions.values()));
+    }
+
+    private static MPEvent toMPEvent(JSONObject event) throws JSONException {
+        MPEvent.Builder builder = new MPEvent.Builder(event.getString("name"), MParticle.EventType.valueOf(event.optString("type", "Other")));
+        JSONObject attributes = event.optJSONObject("attributes");
+        if (attributes != null) {
+            builder.info(toMap(attributes));
+        }
+        JSONObject customFlags = event.optJSONObject("customFlags");
+        if (customFlags != null) {
+            for (Map.Entry<String, String> flag : toMap(customFlags).entrySet()) {
+                builder.addCustomFlag(flag.getKey(), flag.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    private static CommerceEvent toCommerceEvent(JSONObject commerce) throws JSONException {
+        JSONArray products = commerce.getJSONArray("products");
+        if (products.length() == 0) {
+            throw new JSONException("a commerce event needs at least one product");
+        }
+        CommerceEvent.Builder builder = new CommerceEvent.Builder(commerce.getString("action"), toProduct(products.getJSONObject(0)));
+        for (int i = 1; i < products.length(); i++) {
+            builder.addProduct(toProduct(products.getJSONObject(i)));
+        }
+        if (commerce.has("transactionId")) {
+            TransactionAttributes transactionAttributes = new TransactionAttributes(commerce.getString("transactionId"));
+            if (commerce.has("revenue")) {
+                transactionAttributes.setRevenue(commerce.getDouble("revenue"));
+            }
+            builder.transactionAttributes(transactionAttributes);
+        }
+        JSONObject customFlags = commerce.optJSONObject("customFlags");
+        if (customFlags != null) {
+            for (Map.Entry<String, String> flag : toMap(customFlags).entrySet()) {
+                builder.addCustomFlag(flag.getKey(), flag.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    private static Product toProduct(JSONObject product) throws JSONException {
+        Product.Builder builder = new Product.Builder(product.getString("name"), product.getString("sku"), product.optDouble("price", 0))
+                .quantity(product.optDouble("quantity", 1));
+        JSONObject attributes = product.optJSONObject("attributes");
+        if (attributes != null) {
+            builder.customAttributes(toMap(attributes));
+        }
+        return builder.build();
+    }
+
+    private static Map<String, String> toMap(JSONObject object) {
+        Map<String, String> map = new HashMap<>();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            map.put(key, object.optString(key));
+        }
+        return map;
+    }
+}
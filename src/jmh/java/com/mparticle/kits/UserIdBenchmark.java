@@ -0,0 +1,54 @@
+package com.mparticle.kits;
+
+import com.mparticle.identity.MParticleUser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * userId resolution for each "userIdField" value, both the per-event cached path and a full
+ * resolution, as happens after an identity change
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserIdBenchmark {
+
+    @Param({"customerId", "email", "otherid", "otherid2", "otherid3", "otherid4", "mpid", "deviceApplicationStamp"})
+    public String userIdField;
+
+    private OptimizelyKit kit;
+    private UserIdResolver resolver;
+    private MParticleUser user;
+
+    @Setup
+    public void setUp() {
+        user = BenchmarkSupport.setUpMParticle(10);
+        kit = new BenchmarkSupport.BenchmarkKit(userIdField);
+        resolver = UserIdResolver.compile(userIdField);
+    }
+
+    @Benchmark
+    public String getUserId() {
+        return kit.getUserId(user);
+    }
+
+    @Benchmark
+    public String resolveUserId() {
+        return resolver.resolve(user);
+    }
+}
@@ -0,0 +1,195 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands OptimizelyEvents off to a single background worker, which is the only thread that
+ * forwards them to the {@link Sink}. Callers only pay for a slot in a {@link BoundedRingBuffer}.
+ */
+class AsyncEventDispatcher {
+    static final int DEFAULT_CAPACITY = 256;
+
+    enum Backpressure {
+        /**
+         * wait for the worker to free a slot
+         */
+        BLOCK,
+        /**
+         * discard the event being submitted
+         */
+        DROP_NEWEST,
+        /**
+         * discard the oldest buffered event to make room
+         */
+        DROP_OLDEST;
+
+        static Backpressure parse(String value) {
+            if ("block".equalsIgnoreCase(value)) {
+                return BLOCK;
+            } else if ("dropOldest".equalsIgnoreCase(value)) {
+                return DROP_OLDEST;
+            }
+            return DROP_NEWEST;
+        }
+    }
+
+    interface Sink {
+        void dispatch(OptimizelyKit.OptimizelyEvent event);
+    }
+
+    private final BoundedRingBuffer<OptimizelyKit.OptimizelyEvent> mBuffer;
+    private final Backpressure mBackpressure;
+    private final Sink mSink;
+    private final Thread mWorker;
+    private final AtomicLong mAccepted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicInteger mIdleWaiters = new AtomicInteger();
+    private final Object mIdleLock = new Object();
+    private volatile boolean mParked;
+    private volatile boolean mRunning = true;
+
+    AsyncEventDispatcher(int capacity, Backpressure backpressure, Sink sink) {
+        mBuffer = new BoundedRingBuffer<>(capacity);
+        mBackpressure = backpressure;
+        mSink = sink;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "mParticle-Optimizely-dispatch");
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    void submit(OptimizelyKit.OptimizelyEvent event) {
+        if (!mRunning || Thread.currentThread() == mWorker) {
+            mSink.dispatch(event);
+            return;
+        }
+        mAccepted.incrementAndGet();
+        if (!mBuffer.offer(event)) {
+            switch (mBackpressure) {
+                case BLOCK:
+                    while (!mBuffer.offer(event)) {
+                        LockSupport.unpark(mWorker);
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!mBuffer.offer(event)) {
+                        if (mBuffer.poll() != null) {
+                            drop();
+                        }
+                    }
+                    break;
+                default:
+                    drop();
+                    return;
+            }
+        }
+        if (mParked) {
+            LockSupport.unpark(mWorker);
+        }
+    }
+
+    /**
+     * Wait until every event submitted before this call has been handed to the Sink, or dropped
+     * @return false if the timeout elapsed first
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long target = mAccepted.get();
+        if (mCompleted.get() >= target) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        mIdleWaiters.incrementAndGet();
+        try {
+            synchronized (mIdleLock) {
+                while (mCompleted.get() < target) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.unpark(mWorker);
+                    TimeUnit.NANOSECONDS.timedWait(mIdleLock, remaining);
+                }
+            }
+            return true;
+        } finally {
+            mIdleWaiters.decrementAndGet();
+        }
+    }
+
+    int size() {
+        return mBuffer.size();
+    }
+
+    /**
+     * Discard the buffered events without forwarding them. An event the worker has already taken
+     * from the buffer is still forwarded
+     * @return the number of events discarded
+     */
+    int clear() {
+        int cleared = 0;
+        while (mBuffer.poll() != null) {
+            cleared++;
+            complete();
+        }
+        return cleared;
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Stop the worker once it has forwarded everything already buffered. Events submitted after
+     * this call are dispatched on the caller's thread
+     */
+    void shutdown() {
+        mRunning = false;
+        LockSupport.unpark(mWorker);
+    }
+
+    private void drop() {
+        mDropped.incrementAndGet();
+        complete();
+    }
+
+    private void complete() {
+        mCompleted.incrementAndGet();
+        if (mIdleWaiters.get() > 0) {
+            synchronized (mIdleLock) {
+                mIdleLock.notifyAll();
+            }
+        }
+    }
+
+    private void drain() {
+        while (mRunning || !mBuffer.isEmpty()) {
+            OptimizelyKit.OptimizelyEvent event = mBuffer.poll();
+            if (event != null) {
+                try {
+                    mSink.dispatch(event);
+                } catch (Exception ex) {
+                    Logger.error(ex, "Failed to dispatch Optimizely event");
+                } finally {
+                    complete();
+                }
+                continue;
+            }
+            mParked = true;
+            if (mRunning && mBuffer.isEmpty()) {
+                LockSupport.park(this);
+            }
+            mParked = false;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.config.Attribute;
+import com.optimizely.ab.config.ProjectConfig;
+import com.optimizely.ab.config.audience.AndCondition;
+import com.optimizely.ab.config.audience.Audience;
+import com.optimizely.ab.config.audience.Condition;
+import com.optimizely.ab.config.audience.NotCondition;
+import com.optimizely.ab.config.audience.OrCondition;
+import com.optimizely.ab.config.audience.UserAttribute;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Narrows user attributes down to the ones declared in a datafile, since Optimizely ignores the
+ * rest, and converts the values to the type the datafile's audiences compare them against.
+ * mParticle user attributes are strings, but typed audience conditions match on numbers and
+ * booleans. Results are cached against the last UserAttributeCache.Snapshot, so the work is done
+ * once per snapshot rather than once per event.
+ */
+class AttributeProjection {
+    static final String RESERVED_ATTRIBUTE_PREFIX = "$opt_";
+
+    enum Type {
+        STRING,
+        NUMBER,
+        BOOLEAN
+    }
+
+    private final Map<String, Type> mAttributeTypes;
+    private volatile Projected mLast;
+
+    private AttributeProjection(Map<String, Type> attributeTypes) {
+        mAttributeTypes = attributeTypes;
+    }
+
+    /**
+     * @return a projection of the ProjectConfig's attributes, or null if there is no ProjectConfig
+     */
+    static AttributeProjection build(ProjectConfig projectConfig) {
+        if (projectConfig == null) {
+            return null;
+        }
+        Map<String, Type> attributeTypes = new HashMap<>();
+        List<Attribute> attributes = projectConfig.getAttributes();
+        if (attributes != null) {
+            for (Attribute attribute : attributes) {
+                attributeTypes.put(attribute.getKey(), null);
+            }
+        }
+        inferAudienceTypes(projectConfig.getAudiences(), attributeTypes);
+        inferAudienceTypes(projectConfig.getTypedAudiences(), attributeTypes);
+        for (Map.Entry<String, Type> entry : attributeTypes.entrySet()) {
+            if (entry.getValue() == null) {
+                entry.setValue(Type.STRING);
+            }
+        }
+        return new AttributeProjection(attributeTypes);
+    }
+
+    boolean isDeclared(String key) {
+        return mAttributeTypes.containsKey(key) || (key != null && key.startsWith(RESERVED_ATTRIBUTE_PREFIX));
+    }
+
+    /**
+     * @return the keys of the attributes declared in the datafile, or compared against by its audiences
+     */
+    Set<String> getDeclaredKeys() {
+        return Collections.unmodifiableSet(mAttributeTypes.keySet());
+    }
+
+    Type getType(String key) {
+        Type type = mAttributeTypes.get(key);
+        return type == null ? Type.STRING : type;
+    }
+
+    Map<String, ?> project(UserAttributeCache.Snapshot snapshot) {
+        Projected last = mLast;
+        if (last != null && last.snapshot == snapshot) {
+            return last.attributes;
+        }
+        Map<String, ?> attributes = project(snapshot.attributes);
+        mLast = new Projected(snapshot, attributes);
+        return attributes;
+    }
+
+    Map<String, ?> project(Map<String, ?> attributes) {
+        if (attributes == null || attributes.isEmpty()) {
+            return Collections.<String, Object>emptyMap();
+        }
+        Map<String, Object> projected = new HashMap<>();
+        for (Map.Entry<String, ?> entry : attributes.entrySet()) {
+            String key = entry.getKey();
+            if (isDeclared(key)) {
+                projected.put(key, coerce(getType(key), entry.getValue()));
+            }
+        }
+        return projected.isEmpty() ? Collections.<String, Object>emptyMap() : Collections.unmodifiableMap(projected);
+    }
+
+    /**
+     * Convert a value to the given type. Values that can't be converted are left alone, so that
+     * Optimizely reports the mismatch, rather than the kit silently dropping the attribute
+     */
+    static Object coerce(Type type, Object value) {
+        if (!(value instanceof String)) {
+            return value;
+        }
+        String string = (String) value;
+        switch (type) {
+            case NUMBER:
+                try {
+                    return Long.parseLong(string);
+                } catch (NumberFormatException ignore) {
+
+                }
+                try {
+                    double number = Double.parseDouble(string);
+                    if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+                        return number;
+                    }
+                } catch (NumberFormatException ignore) {
+
+                }
+                return value;
+            case BOOLEAN:
+                if ("true".equalsIgnoreCase(string)) {
+                    return Boolean.TRUE;
+                } else if ("false".equalsIgnoreCase(string)) {
+                    return Boolean.FALSE;
+                }
+                return value;
+            default:
+                return value;
+        }
+    }
+
+    private static void inferAudienceTypes(List<Audience> audiences, Map<String, Type> attributeTypes) {
+        if (audiences == null) {
+            return;
+        }
+        for (Audience audience : audiences) {
+            inferTypes(audience.getConditions(), attributeTypes);
+        }
+    }
+
+    private static void inferTypes(Condition<?> condition, Map<String, Type> attributeTypes) {
+        if (condition instanceof AndCondition) {
+            inferConditionTypes(((AndCondition<?>) condition).getConditions(), attributeTypes);
+        } else if (condition instanceof OrCondition) {
+            inferConditionTypes(((OrCondition<?>) condition).getConditions(), attributeTypes);
+        } else if (condition instanceof NotCondition) {
+            inferTypes(((NotCondition<?>) condition).getCondition(), attributeTypes);
+        } else if (condition instanceof UserAttribute) {
+            UserAttribute<?> userAttribute = (UserAttribute<?>) condition;
+            String name = userAttribute.getName();
+            if (name == null || !attributeTypes.containsKey(name)) {
+                return;
+            }
+            Object value = userAttribute.getValue();
+            Type type;
+            if (value instanceof Number) {
+                type = Type.NUMBER;
+            } else if (value instanceof Boolean) {
+                type = Type.BOOLEAN;
+            } else if (value instanceof String) {
+                type = Type.STRING;
+            } else {
+                //"exists" conditions don't say anything about the type
+                return;
+            }
+            Type current = attributeTypes.get(name);
+            //an attribute compared as more than one type is left as a string
+            attributeTypes.put(name, current == null || current == type ? type : Type.STRING);
+        }
+    }
+
+    //the SDK declares condition lists as raw List<Condition>
+    private static void inferConditionTypes(List<?> conditions, Map<String, Type> attributeTypes) {
+        if (conditions == null) {
+            return;
+        }
+        for (Object condition : conditions) {
+            inferTypes((Condition<?>) condition, attributeTypes);
+        }
+    }
+
+    private static class Projected {
+        final UserAttributeCache.Snapshot snapshot;
+        final Map<String, ?> attributes;
+
+        Projected(UserAttributeCache.Snapshot snapshot, Map<String, ?> attributes) {
+            this.snapshot = snapshot;
+            this.attributes = attributes;
+        }
+    }
+}
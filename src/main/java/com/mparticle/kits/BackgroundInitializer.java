@@ -0,0 +1,100 @@
+package com.mparticle.kits;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the kit's initialization once, on a background thread. An initialization that hasn't started
+ * can be held, e.g. while the user is opted out, and runs when it is resumed. Shutting down
+ * interrupts one that is running, so it can stop before publishing a client.
+ */
+class BackgroundInitializer {
+    private final String mThreadName;
+    private Runnable mPending;
+    private ExecutorService mExecutor;
+
+    private final Runnable mRun = new Runnable() {
+        @Override
+        public void run() {
+            Runnable initialize = take();
+            if (initialize != null) {
+                initialize.run();
+            }
+        }
+    };
+
+    BackgroundInitializer(String threadName) {
+        mThreadName = threadName;
+    }
+
+    /**
+     * @param held whether to hold the initialization until {@link #resume()}
+     */
+    synchronized void start(Runnable initialize, boolean held) {
+        mPending = initialize;
+        if (!held) {
+            resume();
+        }
+    }
+
+    /**
+     * Start the pending initialization, if it was held
+     */
+    synchronized void resume() {
+        if (mPending == null || mExecutor != null) {
+            return;
+        }
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, mThreadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            mExecutor.execute(mRun);
+        } catch (RejectedExecutionException ex) {
+            mExecutor = null;
+            return;
+        }
+        //the thread exits once the initialization has run
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Hold the initialization until {@link #resume()}, unless it has already started
+     */
+    synchronized void hold() {
+        if (mPending != null && mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    synchronized void shutdown() {
+        mPending = null;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    synchronized boolean isPending() {
+        return mPending != null;
+    }
+
+    private synchronized Runnable take() {
+        //held or shut down between being submitted and starting
+        if (Thread.currentThread().isInterrupted()) {
+            return null;
+        }
+        Runnable initialize = mPending;
+        mPending = null;
+        return initialize;
+    }
+}
@@ -0,0 +1,86 @@
+package com.mparticle.kits;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free ring buffer. Each slot carries a sequence number, so producers claim a slot
+ * with a single CAS on the tail and publish it by advancing the slot's sequence. It is built for
+ * many producers and a single consumer, but {@link #poll()} also CASes the head so that a producer
+ * may evict the oldest element when the buffer is full.
+ */
+class BoundedRingBuffer<E> {
+    private final int mMask;
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    BoundedRingBuffer(int capacity) {
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mElements = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    boolean offer(E element) {
+        while (true) {
+            long tail = mTail.get();
+            int index = (int) tail & mMask;
+            long available = mSequences.get(index) - tail;
+            if (available == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mElements.set(index, element);
+                    mSequences.lazySet(index, tail + 1);
+                    return true;
+                }
+            } else if (available < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element, or null if the buffer is empty
+     */
+    E poll() {
+        while (true) {
+            long head = mHead.get();
+            int index = (int) head & mMask;
+            long published = mSequences.get(index) - (head + 1);
+            if (published == 0) {
+                if (mHead.compareAndSet(head, head + 1)) {
+                    E element = mElements.get(index);
+                    mElements.lazySet(index, null);
+                    mSequences.lazySet(index, head + mMask + 1);
+                    return element;
+                }
+            } else if (published < 0) {
+                return null;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+}
@@ -0,0 +1,202 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.Logger;
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One-shot OptimizelyClientListener registrations. The registry is either waiting, and holds an
+ * immutable stack of listeners, or published, and holds the client. Both states live in a single
+ * AtomicReference: registering is a compare-and-set onto the stack, and publishing swaps the whole
+ * stack out, so each listener is claimed by exactly one thread and fires exactly once.
+ */
+class ClientRegistry {
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final Waiter EMPTY = new Waiter(null, null, null);
+
+    private final AtomicReference<Object> mState = new AtomicReference<Object>(EMPTY);
+    //the future await() hands out while waiting, so that polling doesn't register a waiter per call
+    private final AtomicReference<ClientFuture> mPending = new AtomicReference<>();
+
+    /**
+     * Run the listener on the executor once a client is published, or right away if one already has been
+     */
+    void register(OptimizelyKit.OptimizelyClientListener listener, Executor executor) {
+        if (listener == null) {
+            return;
+        }
+        if (executor == null) {
+            executor = DIRECT_EXECUTOR;
+        }
+        while (true) {
+            Object state = mState.get();
+            if (state instanceof Published) {
+                dispatch(listener, executor, ((Published) state).client);
+                return;
+            }
+            if (mState.compareAndSet(state, new Waiter(listener, executor, (Waiter) state))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Make the client available, and fire every listener that was waiting for one
+     */
+    void publish(OptimizelyClient client) {
+        Object previous = mState.getAndSet(new Published(client));
+        if (previous instanceof Waiter) {
+            //the stack is newest first, fire in the order the listeners were registered
+            Waiter waiter = reverse((Waiter) previous);
+            while (waiter != EMPTY) {
+                dispatch(waiter.listener, waiter.executor, client);
+                waiter = waiter.next;
+            }
+        }
+    }
+
+    /**
+     * Go back to waiting for a client. Listeners registered from now on fire on the next publish
+     */
+    void reset() {
+        Object state = mState.get();
+        if (state instanceof Published) {
+            mState.compareAndSet(state, EMPTY);
+        }
+    }
+
+    /**
+     * @return the published client, or null if the registry is waiting for one
+     */
+    OptimizelyClient current() {
+        Object state = mState.get();
+        return state instanceof Published ? ((Published) state).client : null;
+    }
+
+    /**
+     * @return a future for the client. While waiting, every call returns the same future, which is
+     * registered once, so callers that time out and call again don't pile up waiters
+     */
+    Future<OptimizelyClient> await() {
+        while (true) {
+            ClientFuture pending = mPending.get();
+            if (pending != null && !pending.isDone()) {
+                return pending;
+            }
+            Object state = mState.get();
+            if (state instanceof Published) {
+                ClientFuture future = new ClientFuture();
+                future.onOptimizelyClientAvailable(((Published) state).client);
+                return future;
+            }
+            //a done future is left over from a previous publish, before a reset()
+            ClientFuture future = new ClientFuture();
+            if (mPending.compareAndSet(pending, future)) {
+                register(future, DIRECT_EXECUTOR);
+                return future;
+            }
+        }
+    }
+
+    private static void dispatch(final OptimizelyKit.OptimizelyClientListener listener, Executor executor, final OptimizelyClient client) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listener.onOptimizelyClientAvailable(client);
+                    } catch (Exception e) {
+                        Logger.warning("OptimizelyClientListener threw an exception: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Logger.warning("Unable to dispatch OptimizelyClientListener: " + e.getMessage());
+        }
+    }
+
+    private static Waiter reverse(Waiter waiter) {
+        Waiter reversed = EMPTY;
+        while (waiter != EMPTY) {
+            reversed = new Waiter(waiter.listener, waiter.executor, reversed);
+            waiter = waiter.next;
+        }
+        return reversed;
+    }
+
+    private static class Waiter {
+        final OptimizelyKit.OptimizelyClientListener listener;
+        final Executor executor;
+        final Waiter next;
+
+        Waiter(OptimizelyKit.OptimizelyClientListener listener, Executor executor, Waiter next) {
+            this.listener = listener;
+            this.executor = executor;
+            this.next = next;
+        }
+    }
+
+    private static class Published {
+        final OptimizelyClient client;
+
+        Published(OptimizelyClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * Shared between callers, so it can't be cancelled
+     */
+    private static class ClientFuture implements Future<OptimizelyClient>, OptimizelyKit.OptimizelyClientListener {
+        private final CountDownLatch mAvailable = new CountDownLatch(1);
+        private volatile OptimizelyClient mClient;
+
+        @Override
+        public void onOptimizelyClientAvailable(OptimizelyClient optimizelyClient) {
+            mClient = optimizelyClient;
+            mAvailable.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mAvailable.getCount() == 0;
+        }
+
+        @Override
+        public OptimizelyClient get() throws InterruptedException, ExecutionException {
+            mAvailable.await();
+            return mClient;
+        }
+
+        @Override
+        public OptimizelyClient get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mAvailable.await(timeout, unit)) {
+                throw new TimeoutException("OptimizelyClient not available after " + timeout + " " + unit);
+            }
+            return mClient;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a refresh on a background thread when requested. Requests made while a refresh is running
+ * are coalesced into one more run after it, so a burst of changes costs at most two refreshes, and
+ * the last one always sees the latest change.
+ */
+class CoalescingRefresher {
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    //running, and requested again since the run started
+    private static final int STALE = 2;
+
+    private final String mThreadName;
+    private final Runnable mRefresh;
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+    private final Object mIdleLock = new Object();
+    private ExecutorService mExecutor;
+
+    private final Runnable mRun = new Runnable() {
+        @Override
+        public void run() {
+            runUntilCurrent();
+        }
+    };
+
+    CoalescingRefresher(String threadName, Runnable refresh) {
+        mThreadName = threadName;
+        mRefresh = refresh;
+    }
+
+    void request() {
+        while (true) {
+            int state = mState.get();
+            if (state == STALE) {
+                return;
+            }
+            if (mState.compareAndSet(state, state == IDLE ? RUNNING : STALE)) {
+                if (state == IDLE) {
+                    submit();
+                }
+                return;
+            }
+        }
+    }
+
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mIdleLock) {
+            while (mState.get() != IDLE) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mIdleLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        idle();
+    }
+
+    private synchronized void submit() {
+        if (mExecutor == null) {
+            mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, mThreadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        try {
+            mExecutor.execute(mRun);
+        } catch (RejectedExecutionException ex) {
+            Logger.warning("Unable to schedule " + mThreadName + ": " + ex.getMessage());
+            idle();
+        }
+    }
+
+    private void runUntilCurrent() {
+        do {
+            mState.set(RUNNING);
+            try {
+                mRefresh.run();
+            } catch (Exception ex) {
+                Logger.error(ex, "Failed to run " + mThreadName);
+            }
+        } while (!mState.compareAndSet(RUNNING, IDLE));
+        synchronized (mIdleLock) {
+            mIdleLock.notifyAll();
+        }
+    }
+
+    private void idle() {
+        synchronized (mIdleLock) {
+            mState.set(IDLE);
+            mIdleLock.notifyAll();
+        }
+    }
+}
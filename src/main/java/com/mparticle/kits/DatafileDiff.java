@@ -0,0 +1,289 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.config.Attribute;
+import com.optimizely.ab.config.EventType;
+import com.optimizely.ab.config.Experiment;
+import com.optimizely.ab.config.FeatureFlag;
+import com.optimizely.ab.config.FeatureVariable;
+import com.optimizely.ab.config.FeatureVariableUsageInstance;
+import com.optimizely.ab.config.Group;
+import com.optimizely.ab.config.ProjectConfig;
+import com.optimizely.ab.config.Rollout;
+import com.optimizely.ab.config.TrafficAllocation;
+import com.optimizely.ab.config.Variation;
+import com.optimizely.ab.config.audience.Audience;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The experiments, features, events and attributes that differ between two datafiles, so that
+ * state derived from the datafile can be invalidated selectively when it is refreshed, rather than
+ * rebuilt in full. Keys added, removed or changed are all reported as changed.
+ * <p>
+ * Each datafile is reduced to an {@link Index} of a signature per key, made of everything that
+ * affects decisions or tracking. An experiment's signature includes its audiences' conditions and
+ * its mutually exclusive group, and a feature's includes its tests and rollout, so a change to an
+ * audience, a group or a rollout rule shows up as a change to every experiment and feature that
+ * uses it. An attribute's includes the type that
+ * audiences compare it as. Datafiles with the same revision are not compared.
+ * <p>
+ * The diff carries the {@link AttributeProjection} the current datafile was indexed with, so
+ * listeners can use it rather than building another.
+ */
+class DatafileDiff {
+    static final DatafileDiff NONE = new DatafileDiff(null, null, null, false, Collections.<String>emptySet(),
+            Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet());
+
+    final String previousRevision;
+    final String revision;
+    final Set<String> experimentKeys;
+    final Set<String> featureKeys;
+    final Set<String> eventKeys;
+    final Set<String> attributeKeys;
+    //the current datafile's, or null if there is none, or the diff is empty
+    final AttributeProjection attributeProjection;
+    private final boolean mFull;
+
+    private DatafileDiff(String previousRevision, String revision, AttributeProjection attributeProjection, boolean full,
+                         Set<String> experimentKeys, Set<String> featureKeys, Set<String> eventKeys, Set<String> attributeKeys) {
+        this.previousRevision = previousRevision;
+        this.revision = revision;
+        this.attributeProjection = attributeProjection;
+        mFull = full;
+        this.experimentKeys = experimentKeys;
+        this.featureKeys = featureKeys;
+        this.eventKeys = eventKeys;
+        this.attributeKeys = attributeKeys;
+    }
+
+    /**
+     * @return true if there was no datafile before, or there is none now, in which case the key sets
+     * are empty and everything derived from the datafile should be rebuilt
+     */
+    boolean isFull() {
+        return mFull;
+    }
+
+    boolean isEmpty() {
+        return !mFull && experimentKeys.isEmpty() && featureKeys.isEmpty() && eventKeys.isEmpty() && attributeKeys.isEmpty();
+    }
+
+    static DatafileDiff between(Index previous, Index current) {
+        if (previous == current) {
+            return NONE;
+        }
+        if (previous == null || current == null) {
+            return new DatafileDiff(previous != null ? previous.revision : null, current != null ? current.revision : null,
+                    current != null ? current.attributeProjection : null, true,
+                    Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet());
+        }
+        if (previous.revision != null && previous.revision.equals(current.revision)) {
+            return NONE;
+        }
+        return new DatafileDiff(previous.revision, current.revision, current.attributeProjection, false,
+                changedKeys(previous.experiments, current.experiments),
+                changedKeys(previous.features, current.features),
+                changedKeys(previous.events, current.events),
+                changedKeys(previous.attributes, current.attributes));
+    }
+
+    private static Set<String> changedKeys(Map<String, String> previous, Map<String, String> current) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String key : previous.keySet()) {
+            if (!current.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed.isEmpty() ? Collections.<String>emptySet() : Collections.unmodifiableSet(changed);
+    }
+
+    @Override
+    public String toString() {
+        if (mFull) {
+            return "revision " + previousRevision + " -> " + revision + ", all changed";
+        }
+        return "revision " + previousRevision + " -> " + revision + ", changed experiments: " + experimentKeys
+                + ", features: " + featureKeys + ", events: " + eventKeys + ", attributes: " + attributeKeys;
+    }
+
+    /**
+     * A datafile's signature per experiment, feature, event and attribute key
+     */
+    static class Index {
+        final String revision;
+        final AttributeProjection attributeProjection;
+        final Map<String, String> experiments = new HashMap<>();
+        final Map<String, String> features = new HashMap<>();
+        final Map<String, String> events = new HashMap<>();
+        final Map<String, String> attributes = new HashMap<>();
+
+        private Index(String revision, AttributeProjection attributeProjection) {
+            this.revision = revision;
+            this.attributeProjection = attributeProjection;
+        }
+
+        /**
+         * @param attributeProjection the ProjectConfig's attribute projection, for the attribute types
+         * @return null if there is no ProjectConfig
+         */
+        static Index build(ProjectConfig projectConfig, AttributeProjection attributeProjection) {
+            if (projectConfig == null) {
+                return null;
+            }
+            Index index = new Index(projectConfig.getRevision(), attributeProjection);
+            Map<String, Audience> audiences = new HashMap<>();
+            putAudiences(projectConfig.getAudiences(), audiences);
+            //typed audiences take precedence over legacy audiences with the same id
+            putAudiences(projectConfig.getTypedAudiences(), audiences);
+            //the group decides which of its experiments a user is bucketed into, if any
+            Map<String, String> groups = new HashMap<>();
+            List<Group> groupList = projectConfig.getGroups();
+            if (groupList != null) {
+                for (Group group : groupList) {
+                    groups.put(group.getId(), signature(group));
+                }
+            }
+
+            Map<String, String> experimentsById = new HashMap<>();
+            List<Experiment> experiments = projectConfig.getExperiments();
+            if (experiments != null) {
+                for (Experiment experiment : experiments) {
+                    String signature = signature(experiment, audiences, groups);
+                    index.experiments.put(experiment.getKey(), signature);
+                    experimentsById.put(experiment.getId(), signature);
+                }
+            }
+            Map<String, String> rolloutsById = new HashMap<>();
+            List<Rollout> rollouts = projectConfig.getRollouts();
+            if (rollouts != null) {
+                for (Rollout rollout : rollouts) {
+                    StringBuilder signature = new StringBuilder();
+                    if (rollout.getExperiments() != null) {
+                        for (Experiment rule : rollout.getExperiments()) {
+                            signature.append('[').append(signature(rule, audiences, groups)).append(']');
+                        }
+                    }
+                    rolloutsById.put(rollout.getId(), signature.toString());
+                }
+            }
+            List<FeatureFlag> featureFlags = projectConfig.getFeatureFlags();
+            if (featureFlags != null) {
+                for (FeatureFlag featureFlag : featureFlags) {
+                    index.features.put(featureFlag.getKey(), signature(featureFlag, experimentsById, rolloutsById));
+                }
+            }
+            List<EventType> eventTypes = projectConfig.getEventTypes();
+            if (eventTypes != null) {
+                for (EventType eventType : eventTypes) {
+                    index.events.put(eventType.getKey(), eventType.getId() + "|" + eventType.getExperimentIds());
+                }
+            }
+            Map<String, String> attributeIds = new HashMap<>();
+            List<Attribute> attributes = projectConfig.getAttributes();
+            if (attributes != null) {
+                for (Attribute attribute : attributes) {
+                    attributeIds.put(attribute.getKey(), attribute.getId());
+                }
+            }
+            if (attributeProjection != null) {
+                for (String key : attributeProjection.getDeclaredKeys()) {
+                    index.attributes.put(key, attributeIds.get(key) + "|" + attributeProjection.getType(key));
+                }
+            }
+            return index;
+        }
+
+        private static void putAudiences(List<Audience> audiences, Map<String, Audience> audiencesById) {
+            if (audiences != null) {
+                for (Audience audience : audiences) {
+                    audiencesById.put(audience.getId(), audience);
+                }
+            }
+        }
+
+        private static String signature(Group group) {
+            StringBuilder signature = new StringBuilder().append(group.getPolicy()).append('|');
+            List<Experiment> experiments = group.getExperiments();
+            if (experiments != null) {
+                for (Experiment experiment : experiments) {
+                    signature.append(experiment.getId()).append(';');
+                }
+            }
+            signature.append('|');
+            appendTrafficAllocation(group.getTrafficAllocation(), signature);
+            return signature.toString();
+        }
+
+        private static String signature(Experiment experiment, Map<String, Audience> audiences, Map<String, String> groups) {
+            StringBuilder signature = new StringBuilder()
+                    .append(experiment.getId()).append('|')
+                    .append(experiment.getStatus()).append('|')
+                    .append(experiment.getLayerId()).append('|')
+                    .append(experiment.getGroupId()).append('[').append(groups.get(experiment.getGroupId())).append("]|")
+                    //how the audiences are combined, which audienceIds alone leave out
+                    .append(experiment.getAudienceConditions()).append('|');
+            List<String> audienceIds = experiment.getAudienceIds();
+            if (audienceIds != null) {
+                for (String audienceId : audienceIds) {
+                    Audience audience = audiences.get(audienceId);
+                    signature.append(audienceId).append('=').append(audience != null ? audience.getConditions() : null).append(';');
+                }
+            }
+            signature.append('|');
+            List<Variation> variations = experiment.getVariations();
+            if (variations != null) {
+                for (Variation variation : variations) {
+                    signature.append(variation.getId()).append(':').append(variation.getKey()).append(':').append(variation.getFeatureEnabled());
+                    List<FeatureVariableUsageInstance> usages = variation.getFeatureVariableUsageInstances();
+                    if (usages != null) {
+                        for (FeatureVariableUsageInstance usage : usages) {
+                            signature.append(':').append(usage.getId()).append('=').append(usage.getValue());
+                        }
+                    }
+                    signature.append(';');
+                }
+            }
+            signature.append('|');
+            appendTrafficAllocation(experiment.getTrafficAllocation(), signature);
+            return signature.append('|').append(experiment.getUserIdToVariationKeyMap()).toString();
+        }
+
+        private static void appendTrafficAllocation(List<TrafficAllocation> trafficAllocation, StringBuilder signature) {
+            if (trafficAllocation != null) {
+                for (TrafficAllocation allocation : trafficAllocation) {
+                    signature.append(allocation.getEntityId()).append('<').append(allocation.getEndOfRange()).append(';');
+                }
+            }
+        }
+
+        private static String signature(FeatureFlag featureFlag, Map<String, String> experimentsById, Map<String, String> rolloutsById) {
+            StringBuilder signature = new StringBuilder().append(featureFlag.getId()).append('|');
+            List<FeatureVariable> variables = featureFlag.getVariables();
+            if (variables != null) {
+                for (FeatureVariable variable : variables) {
+                    signature.append(variable.getId()).append(':').append(variable.getKey()).append(':')
+                            .append(variable.getType()).append(':').append(variable.getDefaultValue()).append(';');
+                }
+            }
+            signature.append('|');
+            List<String> experimentIds = featureFlag.getExperimentIds();
+            if (experimentIds != null) {
+                for (String experimentId : experimentIds) {
+                    signature.append('[').append(experimentsById.get(experimentId)).append(']');
+                }
+            }
+            return signature.append('|').append(featureFlag.getRolloutId())
+                    .append('[').append(rolloutsById.get(featureFlag.getRolloutId())).append(']').toString();
+        }
+    }
+}
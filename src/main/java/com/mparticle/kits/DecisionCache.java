@@ -0,0 +1,112 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+import com.optimizely.ab.config.Variation;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Experiment decisions, cached per (experiment key, userId). Each decision remembers the user
+ * attribute snapshot version it was made with, and is made again once the attributes change. The
+ * whole cache is cleared when the user changes, and a datafile update drops the decisions for the
+ * experiments that changed. Lookups are a ConcurrentHashMap read,
+ * so cached decisions are cheap enough to serve from the UI thread.
+ */
+class DecisionCache {
+    private final ConcurrentHashMap<Key, Decision> mDecisions = new ConcurrentHashMap<>();
+
+    /**
+     * @param activate whether to send an impression. Only the first activation of a cached decision sends one
+     * @return the variation, or null if the user is not bucketed into the experiment
+     */
+    Variation get(OptimizelyClient client, String experimentKey, String userId, long attributesVersion, Map<String, ?> attributes, boolean activate) {
+        Key key = new Key(experimentKey, userId);
+        Decision decision = mDecisions.get(key);
+        if (decision == null || decision.attributesVersion != attributesVersion) {
+            //decide without an impression, so that concurrent first lookups can't send more than one
+            Decision made = new Decision(attributesVersion, client.getVariation(experimentKey, userId, attributes));
+            if (decision == null) {
+                decision = mDecisions.putIfAbsent(key, made);
+                if (decision == null) {
+                    decision = made;
+                }
+            } else if (mDecisions.replace(key, decision, made)) {
+                decision = made;
+            } else {
+                Decision current = mDecisions.get(key);
+                decision = current != null ? current : made;
+            }
+        }
+        if (activate && decision.variation != null && decision.activated.compareAndSet(false, true)) {
+            client.activate(experimentKey, userId, attributes);
+        }
+        return decision.variation;
+    }
+
+    void clear() {
+        mDecisions.clear();
+    }
+
+    /**
+     * Drop the decisions for the given experiments, for every user
+     */
+    void invalidate(Set<String> experimentKeys) {
+        if (experimentKeys.isEmpty()) {
+            return;
+        }
+        Iterator<Key> keys = mDecisions.keySet().iterator();
+        while (keys.hasNext()) {
+            if (experimentKeys.contains(keys.next().experimentKey)) {
+                keys.remove();
+            }
+        }
+    }
+
+    int size() {
+        return mDecisions.size();
+    }
+
+    private static class Decision {
+        final long attributesVersion;
+        final Variation variation;
+        final AtomicBoolean activated = new AtomicBoolean();
+
+        Decision(long attributesVersion, Variation variation) {
+            this.attributesVersion = attributesVersion;
+            this.variation = variation;
+        }
+    }
+
+    private static class Key {
+        final String experimentKey;
+        final String userId;
+        private final int mHashCode;
+
+        Key(String experimentKey, String userId) {
+            this.experimentKey = experimentKey;
+            this.userId = userId;
+            mHashCode = 31 * experimentKey.hashCode() + (userId == null ? 0 : userId.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return experimentKey.equals(key.experimentKey) && (userId == null ? key.userId == null : userId.equals(key.userId));
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
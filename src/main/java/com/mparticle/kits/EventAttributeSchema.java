@@ -0,0 +1,240 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.Logger;
+import com.mparticle.internal.MPUtility;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Typed event tags, from the "eventAttributeSchema" kit setting. mParticle event attributes are
+ * strings, while Optimizely expects numbers for its reserved tags ("revenue" in cents, "value") and
+ * for numeric metrics. The schema is a JSON object of event name to attribute key to either a type,
+ * or a type and the name to forward the attribute as:
+ *
+ * <pre>
+ * {"Checkout": {"total": {"type": "cents", "name": "revenue"}, "items": "integer"},
+ *  "*": {"rating": "number"}}
+ * </pre>
+ *
+ * Types are "string", "integer", "number", "boolean" and "cents" (a decimal amount, forwarded as
+ * integer cents). Attributes under "*" apply to every event, unless the event's own schema has the
+ * same key. The schema is compiled once into a converter per event name, which converts all of an
+ * event's attributes in one pass. Attributes not in the schema are forwarded as they are, and so
+ * are values that fail to parse, which are counted rather than logged. A renamed attribute replaces
+ * any attribute the event already has under the new name.
+ */
+class EventAttributeSchema {
+    static final String ALL_EVENTS = "*";
+
+    static final EventAttributeSchema NONE = new EventAttributeSchema(Collections.<String, Converter>emptyMap(), null);
+
+    enum Type {
+        STRING,
+        INTEGER,
+        NUMBER,
+        BOOLEAN,
+        CENTS;
+
+        static Type parse(String type) {
+            if (type == null) {
+                return null;
+            }
+            try {
+                return valueOf(type.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+    }
+
+    private final Map<String, Converter> mConverters;
+    private final Converter mAllEvents;
+
+    private EventAttributeSchema(Map<String, Converter> converters, Converter allEvents) {
+        mConverters = converters;
+        mAllEvents = allEvents;
+    }
+
+    boolean isEmpty() {
+        return mAllEvents == null && mConverters.isEmpty();
+    }
+
+    /**
+     * @return the converter for the event name, or null if none of its attributes are in the schema
+     */
+    Converter get(String eventName) {
+        Converter converter = eventName == null ? null : mConverters.get(eventName);
+        return converter != null ? converter : mAllEvents;
+    }
+
+    static EventAttributeSchema parse(String schema) {
+        if (MPUtility.isEmpty(schema)) {
+            return NONE;
+        }
+        Map<String, Map<String, Field>> events = new HashMap<>();
+        try {
+            JSONObject schemaJson = new JSONObject(schema);
+            Iterator<String> eventNames = schemaJson.keys();
+            while (eventNames.hasNext()) {
+                String eventName = eventNames.next();
+                JSONObject attributesJson = schemaJson.optJSONObject(eventName);
+                if (attributesJson == null) {
+                    Logger.warning(String.format("Ignoring Optimizely attribute schema for \"%s\", it must be a JSON object", eventName));
+                    continue;
+                }
+                Map<String, Field> fields = new HashMap<>();
+                Iterator<String> keys = attributesJson.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    JSONObject fieldJson = attributesJson.optJSONObject(key);
+                    Type type = Type.parse(fieldJson != null ? fieldJson.optString("type", null) : attributesJson.optString(key, null));
+                    if (type == null) {
+                        Logger.warning(String.format("Ignoring Optimizely attribute schema for \"%s\" in \"%s\", unknown type", key, eventName));
+                        continue;
+                    }
+                    String name = fieldJson != null ? fieldJson.optString("name", key) : key;
+                    fields.put(key, new Field(name, type));
+                }
+                events.put(eventName, fields);
+            }
+        } catch (JSONException ex) {
+            Logger.warning("Unable to parse Optimizely attribute schema: " + ex.getMessage());
+            return NONE;
+        }
+        Map<String, Field> allEventFields = events.remove(ALL_EVENTS);
+        Converter allEvents = allEventFields != null && !allEventFields.isEmpty() ? new Converter(allEventFields) : null;
+        Map<String, Converter> converters = new HashMap<>();
+        for (Map.Entry<String, Map<String, Field>> event : events.entrySet()) {
+            Map<String, Field> fields = event.getValue();
+            if (allEventFields != null) {
+                for (Map.Entry<String, Field> field : allEventFields.entrySet()) {
+                    if (!fields.containsKey(field.getKey())) {
+                        fields.put(field.getKey(), field.getValue());
+                    }
+                }
+            }
+            if (!fields.isEmpty()) {
+                converters.put(event.getKey(), new Converter(fields));
+            }
+        }
+        if (converters.isEmpty() && allEvents == null) {
+            return NONE;
+        }
+        return new EventAttributeSchema(converters, allEvents);
+    }
+
+    static class Field {
+        final String name;
+        final Type type;
+
+        Field(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    static class Converter {
+        private final Map<String, Field> mFields;
+        //the names attributes are renamed to
+        private final Set<String> mRenamed = new HashSet<>();
+
+        Converter(Map<String, Field> fields) {
+            mFields = fields;
+            for (Map.Entry<String, Field> field : fields.entrySet()) {
+                if (!field.getKey().equals(field.getValue().name)) {
+                    mRenamed.add(field.getValue().name);
+                }
+            }
+        }
+
+        /**
+         * @param failures counts the values that couldn't be converted
+         * @return the attributes as event tags, typed and renamed as the schema says
+         */
+        Map<String, Object> convert(Map<String, String> attributes, StripedCounter failures) {
+            Map<String, Object> eventTags = new HashMap<>((int) (attributes.size() / 0.75f) + 1);
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                String value = attribute.getValue();
+                Field field = mFields.get(attribute.getKey());
+                if (field == null || value == null) {
+                    putUnconverted(eventTags, attribute.getKey(), value);
+                    continue;
+                }
+                Object converted = parseValue(field.type, value);
+                if (converted == null) {
+                    failures.increment();
+                    putUnconverted(eventTags, attribute.getKey(), value);
+                } else {
+                    eventTags.put(field.name, converted);
+                }
+            }
+            return eventTags;
+        }
+
+        /**
+         * Put an attribute under its own name, unless an attribute renamed to it is already there,
+         * so that the renamed one wins whatever order the attributes are iterated in
+         */
+        private void putUnconverted(Map<String, Object> eventTags, String key, String value) {
+            if (!mRenamed.contains(key) || !eventTags.containsKey(key)) {
+                eventTags.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * @return the value as the given type, or null if it can't be converted
+     */
+    static Object parseValue(Type type, String value) {
+        switch (type) {
+            case STRING:
+                return value;
+            case INTEGER:
+                try {
+                    return narrow(Long.parseLong(value.trim()));
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            case NUMBER:
+                try {
+                    double number = Double.parseDouble(value);
+                    return Double.isNaN(number) || Double.isInfinite(number) ? null : number;
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            case BOOLEAN:
+                String trimmed = value.trim();
+                if ("true".equalsIgnoreCase(trimmed) || "1".equals(trimmed)) {
+                    return Boolean.TRUE;
+                }
+                if ("false".equalsIgnoreCase(trimmed) || "0".equals(trimmed)) {
+                    return Boolean.FALSE;
+                }
+                return null;
+            case CENTS:
+                long cents = RevenueExtractor.parseCents(value);
+                return cents == RevenueExtractor.INVALID ? null : narrow(cents);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Optimizely reads integer tags as Integers, so only values that don't fit stay Longs
+     */
+    private static Object narrow(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,122 @@
+package com.mparticle.kits;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops Optimizely events identical to one seen within the last window: the same event name, userId
+ * and event attributes. Events are remembered as a 64 bit fingerprint and a timestamp in a fixed
+ * size, open-addressed table, so memory doesn't grow with the number of distinct events. When
+ * there's no free slot near an event's home slot, the oldest one there is overwritten, so under heavy
+ * load a duplicate may be missed, but a distinct event is only dropped on a fingerprint collision.
+ */
+class EventDeduplicator {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    //slots probed from an event's home slot, before evicting the oldest of them
+    private static final int MAX_PROBES = 8;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long mWindowNanos;
+    private final int mMask;
+    private final long[] mFingerprints;
+    private final long[] mTimestamps;
+
+    /**
+     * @param capacity the number of events remembered, rounded up to a power of 2
+     */
+    EventDeduplicator(long windowMillis, int capacity) {
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        int size = Integer.highestOneBit(Math.max(MAX_PROBES, Math.min(capacity, 1 << 20)) - 1) << 1;
+        mMask = size - 1;
+        mFingerprints = new long[size];
+        mTimestamps = new long[size];
+    }
+
+    boolean isDuplicate(OptimizelyKit.OptimizelyEvent event) {
+        return isDuplicate(event, System.nanoTime());
+    }
+
+    /**
+     * @return whether an identical event was seen within the window. If not, this one is remembered
+     */
+    synchronized boolean isDuplicate(OptimizelyKit.OptimizelyEvent event, long nowNanos) {
+        long fingerprint = fingerprint(event.eventName, event.userId, event.eventAttributes);
+        int home = (int) (fingerprint ^ (fingerprint >>> 32)) & mMask;
+        int free = -1;
+        int oldest = home;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (home + i) & mMask;
+            long seen = mFingerprints[slot];
+            boolean expired = seen == 0 || nowNanos - mTimestamps[slot] > mWindowNanos;
+            if (seen == fingerprint && !expired) {
+                return true;
+            }
+            if (expired) {
+                if (free < 0) {
+                    free = slot;
+                }
+            } else if (mTimestamps[slot] - mTimestamps[oldest] < 0) {
+                oldest = slot;
+            }
+        }
+        int slot = free >= 0 ? free : oldest;
+        mFingerprints[slot] = fingerprint;
+        mTimestamps[slot] = nowNanos;
+        return false;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < mFingerprints.length; i++) {
+            mFingerprints[i] = 0;
+        }
+    }
+
+    int capacity() {
+        return mFingerprints.length;
+    }
+
+    /**
+     * @return a 64 bit hash of the event, never 0. Attributes are combined independently of their
+     * iteration order
+     */
+    static long fingerprint(String eventName, String userId, Map<String, ?> eventAttributes) {
+        long hash = mix(hash(hash(FNV_OFFSET, eventName), userId));
+        if (eventAttributes != null) {
+            long attributes = 0;
+            for (Map.Entry<String, ?> entry : eventAttributes.entrySet()) {
+                Object value = entry.getValue();
+                long entryHash = hash(FNV_OFFSET, entry.getKey());
+                if (value instanceof String) {
+                    entryHash = hash(entryHash, (String) value);
+                } else if (value != null) {
+                    entryHash = entryHash * FNV_PRIME ^ value.hashCode();
+                }
+                attributes += mix(entryHash);
+            }
+            hash = mix(hash ^ attributes);
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return hash * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        //separate adjacent strings, so ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,45 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.config.EventType;
+import com.optimizely.ab.config.ProjectConfig;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The event keys declared in a datafile. Optimizely drops track() calls for any other event key,
+ * so the kit uses this to skip those events before doing any work for them.
+ */
+class EventKeyIndex {
+    private final Set<String> mEventKeys;
+
+    private EventKeyIndex(Set<String> eventKeys) {
+        mEventKeys = eventKeys;
+    }
+
+    /**
+     * @return an index of the ProjectConfig's event keys, or null if there is no ProjectConfig
+     */
+    static EventKeyIndex build(ProjectConfig projectConfig) {
+        if (projectConfig == null) {
+            return null;
+        }
+        List<EventType> eventTypes = projectConfig.getEventTypes();
+        Set<String> eventKeys = new HashSet<>();
+        if (eventTypes != null) {
+            for (EventType eventType : eventTypes) {
+                eventKeys.add(eventType.getKey());
+            }
+        }
+        return new EventKeyIndex(eventKeys);
+    }
+
+    boolean contains(String eventKey) {
+        return eventKey != null && mEventKeys.contains(eventKey);
+    }
+
+    int size() {
+        return mEventKeys.size();
+    }
+}
@@ -0,0 +1,186 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.Logger;
+import com.mparticle.internal.MPUtility;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per event name rate limits and sampling, configured from the kit settings. Rules are looked up
+ * before an OptimizelyEvent is built, so a throttled event costs a map lookup and nothing else.
+ * <p>
+ * "eventRateLimits" is a JSON object of event name to token bucket, e.g.
+ * {"scroll": {"perSecond": 1, "burst": 5}}. "eventSampleRates" is a JSON object of event name to
+ * the fraction of users whose events are forwarded, e.g. {"playback-progress": 0.1}. Sampling
+ * hashes the userId, so a given user is either always in or always out.
+ */
+class EventThrottle {
+    static final int ALLOWED = 0;
+    static final int SAMPLED_OUT = 1;
+    static final int RATE_LIMITED = 2;
+
+    static final EventThrottle NONE = new EventThrottle(Collections.<String, Rule>emptyMap());
+
+    private static final int SAMPLE_BUCKETS = 10000;
+
+    private final Map<String, Rule> mRules;
+
+    private EventThrottle(Map<String, Rule> rules) {
+        mRules = rules;
+    }
+
+    /**
+     * @return the rule for the event name, or null if its events are not throttled
+     */
+    Rule get(String eventName) {
+        return eventName == null ? null : mRules.get(eventName);
+    }
+
+    boolean isEmpty() {
+        return mRules.isEmpty();
+    }
+
+    static EventThrottle parse(String rateLimits, String sampleRates) {
+        Map<String, TokenBucket> buckets = new HashMap<>();
+        Map<String, Double> rates = new HashMap<>();
+        if (!MPUtility.isEmpty(rateLimits)) {
+            try {
+                JSONObject rateLimitsJson = new JSONObject(rateLimits);
+                Iterator<String> eventNames = rateLimitsJson.keys();
+                while (eventNames.hasNext()) {
+                    String eventName = eventNames.next();
+                    JSONObject rateLimit = rateLimitsJson.optJSONObject(eventName);
+                    double perSecond = rateLimit == null ? Double.NaN : rateLimit.optDouble("perSecond");
+                    if (!(perSecond >= 0)) {
+                        Logger.warning(String.format("Ignoring Optimizely rate limit for \"%s\", \"perSecond\" must be a number >= 0", eventName));
+                        continue;
+                    }
+                    double burst = rateLimit.optDouble("burst", Math.max(1, Math.ceil(perSecond)));
+                    buckets.put(eventName, new TokenBucket(perSecond, Math.max(1, burst)));
+                }
+            } catch (JSONException ex) {
+                Logger.warning("Unable to parse Optimizely event rate limits: " + ex.getMessage());
+            }
+        }
+        if (!MPUtility.isEmpty(sampleRates)) {
+            try {
+                JSONObject sampleRatesJson = new JSONObject(sampleRates);
+                Iterator<String> eventNames = sampleRatesJson.keys();
+                while (eventNames.hasNext()) {
+                    String eventName = eventNames.next();
+                    double sampleRate = sampleRatesJson.optDouble(eventName);
+                    if (!(sampleRate >= 0 && sampleRate <= 1)) {
+                        Logger.warning(String.format("Ignoring Optimizely sample rate for \"%s\", it must be between 0 and 1", eventName));
+                        continue;
+                    }
+                    rates.put(eventName, sampleRate);
+                }
+            } catch (JSONException ex) {
+                Logger.warning("Unable to parse Optimizely event sample rates: " + ex.getMessage());
+            }
+        }
+        if (buckets.isEmpty() && rates.isEmpty()) {
+            return NONE;
+        }
+        Map<String, Rule> rules = new HashMap<>();
+        for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+            Double sampleRate = rates.get(entry.getKey());
+            rules.put(entry.getKey(), new Rule(sampleRate != null ? sampleRate : 1, entry.getValue()));
+        }
+        for (Map.Entry<String, Double> entry : rates.entrySet()) {
+            if (!rules.containsKey(entry.getKey())) {
+                rules.put(entry.getKey(), new Rule(entry.getValue(), null));
+            }
+        }
+        return new EventThrottle(rules);
+    }
+
+    /**
+     * @return true if events from the user should be forwarded, at the given sample rate
+     */
+    static boolean isSampled(String userId, double sampleRate) {
+        if (sampleRate >= 1) {
+            return true;
+        }
+        if (userId == null || sampleRate <= 0) {
+            return false;
+        }
+        //String.hashCode() is specified, so the result is stable across processes and devices,
+        //but it's poorly distributed in its low bits. Mix it before bucketing
+        int hash = userId.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % SAMPLE_BUCKETS < sampleRate * SAMPLE_BUCKETS;
+    }
+
+    static class Rule {
+        final double sampleRate;
+        private final TokenBucket mTokenBucket;
+
+        Rule(double sampleRate, TokenBucket tokenBucket) {
+            this.sampleRate = sampleRate;
+            mTokenBucket = tokenBucket;
+        }
+
+        boolean isSampling() {
+            return sampleRate < 1;
+        }
+
+        int check(String userId) {
+            return check(userId, System.nanoTime());
+        }
+
+        /**
+         * Sampling is checked first, so users that are sampled out don't use up the rate limit
+         * @return ALLOWED, SAMPLED_OUT or RATE_LIMITED
+         */
+        int check(String userId, long nowNanos) {
+            if (!isSampled(userId, sampleRate)) {
+                return SAMPLED_OUT;
+            }
+            if (mTokenBucket != null && !mTokenBucket.tryAcquire(nowNanos)) {
+                return RATE_LIMITED;
+            }
+            return ALLOWED;
+        }
+    }
+
+    static class TokenBucket {
+        private final double mTokensPerNano;
+        private final double mCapacity;
+        private double mTokens;
+        private long mLastRefillNanos;
+        private boolean mStarted;
+
+        TokenBucket(double perSecond, double burst) {
+            mTokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            mCapacity = burst;
+            mTokens = burst;
+        }
+
+        synchronized boolean tryAcquire(long nowNanos) {
+            if (!mStarted) {
+                mStarted = true;
+                mLastRefillNanos = nowNanos;
+            } else if (nowNanos > mLastRefillNanos) {
+                mTokens = Math.min(mCapacity, mTokens + (nowNanos - mLastRefillNanos) * mTokensPerNano);
+                mLastRefillNanos = nowNanos;
+            }
+            if (mTokens >= 1) {
+                mTokens -= 1;
+                return true;
+            }
+            return false;
+        }
+    }
+}
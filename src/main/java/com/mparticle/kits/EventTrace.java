@@ -0,0 +1,195 @@
+package com.mparticle.kits;
+
+import com.mparticle.MParticle;
+import com.mparticle.internal.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A fixed-size ring buffer of how events were mapped to Optimizely events: custom names, userIds
+ * and values applied, revenue, and whether the event was tracked or queued.
+ *
+ * Tracing is on while debug logging is, or when it has been enabled explicitly (the "eventTrace"
+ * setting, or {@link OptimizelyKit#setEventTraceEnabled(boolean)}), so that it can be left on in
+ * production without logging. Records hold the values as they were, and are only formatted into
+ * messages when they are logged or read, so nothing is formatted or allocated while tracing is off.
+ * Read it through {@link OptimizelyKit#getEventTrace()}.
+ */
+public class EventTrace {
+    static final int DEFAULT_CAPACITY = 128;
+
+    public enum Type {
+        CUSTOM_VALUE("Applying custom value: \"%2$s\" to Optimizely Event based on customFlag"),
+        CUSTOM_USER_ID("Applying custom userId: \"%2$s\" to Optimizely Event based on customFlag"),
+        CUSTOM_EVENT_NAME("Applying custom eventName: \"%2$s\" to Optimizely Event based on customFlag"),
+        REVENUE("Applying revenue: \"%3$d\" to Optimizely Event based on transactionAttributes"),
+        DAS_USER_ID("Optimizely userId not found, applying DAS as userId by default"),
+        QUEUED("Queued Optimizely event \"%1$s\" until the OptimizelyClient is available"),
+        TRACKED("Tracked Optimizely event \"%1$s\" for userId \"%2$s\"");
+
+        //positional arguments: 1 the event name, 2 the detail, 3 the value
+        private final String mFormat;
+
+        Type(String format) {
+            mFormat = format;
+        }
+    }
+
+    private volatile boolean mEnabled;
+    private long[] mTimes;
+    private Type[] mTypes;
+    private String[] mEventNames;
+    private String[] mDetails;
+    private long[] mValues;
+    private long mCount;
+
+    EventTrace(int capacity) {
+        configure(capacity, false);
+    }
+
+    /**
+     * @param capacity the number of records kept, the oldest are overwritten first
+     * @param enabled whether to trace even while debug logging is off
+     */
+    synchronized void configure(int capacity, boolean enabled) {
+        capacity = Math.max(1, capacity);
+        mTimes = new long[capacity];
+        mTypes = new Type[capacity];
+        mEventNames = new String[capacity];
+        mDetails = new String[capacity];
+        mValues = new long[capacity];
+        mCount = 0;
+        mEnabled = enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Call sites that would have to allocate to build their arguments should check this first
+     */
+    boolean isEnabled() {
+        return mEnabled || isDebugLogging();
+    }
+
+    void record(Type type, String eventName, String detail) {
+        record(type, eventName, detail, 0);
+    }
+
+    void record(Type type, String eventName, String detail, long value) {
+        boolean debugLogging = isDebugLogging();
+        if (!mEnabled && !debugLogging) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        synchronized (this) {
+            int index = (int) (mCount++ % mTimes.length);
+            mTimes[index] = time;
+            mTypes[index] = type;
+            mEventNames[index] = eventName;
+            mDetails[index] = detail;
+            mValues[index] = value;
+        }
+        if (debugLogging) {
+            Logger.debug(format(type, eventName, detail, value));
+        }
+    }
+
+    /**
+     * @return the records currently in the buffer, oldest first
+     */
+    synchronized List<Record> dump() {
+        int capacity = mTimes.length;
+        int size = (int) Math.min(mCount, capacity);
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        List<Record> records = new ArrayList<>(size);
+        for (long i = mCount - size; i < mCount; i++) {
+            int index = (int) (i % capacity);
+            records.add(new Record(mTimes[index], mTypes[index], mEventNames[index], mDetails[index], mValues[index]));
+        }
+        return records;
+    }
+
+    synchronized void clear() {
+        mCount = 0;
+        for (int i = 0; i < mTimes.length; i++) {
+            mEventNames[i] = null;
+            mDetails[i] = null;
+        }
+    }
+
+    /**
+     * @return whether the mParticle SDK is logging debug messages
+     */
+    static boolean isDebugLogging() {
+        MParticle.LogLevel logLevel = Logger.getMinLogLevel();
+        return logLevel == MParticle.LogLevel.DEBUG || logLevel == MParticle.LogLevel.VERBOSE;
+    }
+
+    private static String format(Type type, String eventName, String detail, long value) {
+        return String.format(Locale.US, type.mFormat, eventName, detail, value);
+    }
+
+    public static class Record {
+        private final long mTimestamp;
+        private final Type mType;
+        private final String mEventName;
+        private final String mDetail;
+        private final long mValue;
+
+        Record(long timestamp, Type type, String eventName, String detail, long value) {
+            mTimestamp = timestamp;
+            mType = type;
+            mEventName = eventName;
+            mDetail = detail;
+            mValue = value;
+        }
+
+        /**
+         * @return when the record was made, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public Type getType() {
+            return mType;
+        }
+
+        /**
+         * @return the name of the mParticle event being mapped, if there is one
+         */
+        public String getEventName() {
+            return mEventName;
+        }
+
+        /**
+         * @return the custom value, userId or event name applied, or the userId an event was tracked for
+         */
+        public String getDetail() {
+            return mDetail;
+        }
+
+        /**
+         * @return the revenue applied, in cents
+         */
+        public long getValue() {
+            return mValue;
+        }
+
+        public String getMessage() {
+            return format(mType, mEventName, mDetail, mValue);
+        }
+
+        @Override
+        public String toString() {
+            return mTimestamp + " " + mType + " " + getMessage();
+        }
+    }
+}
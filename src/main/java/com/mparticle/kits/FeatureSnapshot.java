@@ -0,0 +1,354 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.Logger;
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+import com.optimizely.ab.config.Experiment;
+import com.optimizely.ab.config.FeatureFlag;
+import com.optimizely.ab.config.FeatureVariable;
+import com.optimizely.ab.config.FeatureVariableUsageInstance;
+import com.optimizely.ab.config.ProjectConfig;
+import com.optimizely.ab.config.Variation;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every feature flag in the datafile, and each of its variables, evaluated for one user. Snapshots
+ * are built on a background thread whenever the datafile, the user or their attributes change, and
+ * are immutable once published, so the UI can read flags without bucketing the user on every call.
+ * <p>
+ * Feature and variable keys are looked up in open-addressed arrays, and values are stored as
+ * primitives, so reads don't allocate. Variable getters take the value to return when the feature
+ * or variable isn't in the snapshot, or has a different type.
+ * <p>
+ * Building a snapshot doesn't send impressions. Call {@link OptimizelyKit#activate(String)} with
+ * the experiment key of a feature test to record that the user was exposed to it.
+ * Read it through {@link OptimizelyKit#getFeatureSnapshot()}.
+ */
+public class FeatureSnapshot {
+    static final FeatureSnapshot EMPTY = new FeatureSnapshot(null, null, KeyTable.EMPTY, new boolean[0], new KeyTable[0], new byte[0], new long[0], new String[0]);
+
+    //variables the client returned no value for
+    private static final byte MISSING = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte INTEGER = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte STRING = 4;
+
+    private final String mUserId;
+    private final String mRevision;
+    private final KeyTable mFeatures;
+    private final boolean[] mEnabled;
+    //per feature, variable key to an index into the value arrays
+    private final KeyTable[] mVariables;
+    private final byte[] mTypes;
+    //booleans, integers and the bits of doubles
+    private final long[] mValues;
+    private final String[] mStrings;
+
+    private FeatureSnapshot(String userId, String revision, KeyTable features, boolean[] enabled, KeyTable[] variables, byte[] types, long[] values, String[] strings) {
+        mUserId = userId;
+        mRevision = revision;
+        mFeatures = features;
+        mEnabled = enabled;
+        mVariables = variables;
+        mTypes = types;
+        mValues = values;
+        mStrings = strings;
+    }
+
+    /**
+     * @return the userId the flags were evaluated for, or null if nothing has been evaluated yet
+     */
+    public String getUserId() {
+        return mUserId;
+    }
+
+    /**
+     * @return the revision of the datafile the flags were evaluated with
+     */
+    public String getRevision() {
+        return mRevision;
+    }
+
+    public boolean hasFeature(String featureKey) {
+        return mFeatures.indexOf(featureKey) >= 0;
+    }
+
+    /**
+     * @return false if the feature is disabled for the user, or isn't in the snapshot
+     */
+    public boolean isFeatureEnabled(String featureKey) {
+        int feature = mFeatures.indexOf(featureKey);
+        return feature >= 0 && mEnabled[feature];
+    }
+
+    public boolean getFeatureVariableBoolean(String featureKey, String variableKey, boolean defaultValue) {
+        int variable = indexOf(featureKey, variableKey, BOOLEAN);
+        return variable >= 0 ? mValues[variable] != 0 : defaultValue;
+    }
+
+    public int getFeatureVariableInteger(String featureKey, String variableKey, int defaultValue) {
+        int variable = indexOf(featureKey, variableKey, INTEGER);
+        return variable >= 0 ? (int) mValues[variable] : defaultValue;
+    }
+
+    public double getFeatureVariableDouble(String featureKey, String variableKey, double defaultValue) {
+        int variable = indexOf(featureKey, variableKey, DOUBLE);
+        return variable >= 0 ? Double.longBitsToDouble(mValues[variable]) : defaultValue;
+    }
+
+    public String getFeatureVariableString(String featureKey, String variableKey, String defaultValue) {
+        int variable = indexOf(featureKey, variableKey, STRING);
+        return variable >= 0 ? mStrings[variable] : defaultValue;
+    }
+
+    private int indexOf(String featureKey, String variableKey, byte type) {
+        int feature = mFeatures.indexOf(featureKey);
+        if (feature < 0) {
+            return -1;
+        }
+        int variable = mVariables[feature].indexOf(variableKey);
+        return variable >= 0 && mTypes[variable] == type ? variable : -1;
+    }
+
+    /**
+     * Evaluate every feature flag in the datafile, and each of its variables, for the user. Each
+     * feature is decided once. Feature tests are decided with getVariation(), which doesn't send an
+     * impression, and their variables are read from the variation. Features that the user isn't in a
+     * test for are left to isFeatureEnabled(), which only sends impressions for tests. The client
+     * doesn't expose which rollout rule enabled a feature, so the variables of a feature enabled by
+     * its rollout are read through the client, which buckets the user again for each of them.
+     * Variables of a disabled feature take their default values
+     */
+    static FeatureSnapshot evaluate(OptimizelyClient client, ProjectConfig projectConfig, String userId, Map<String, ?> attributes) {
+        List<FeatureFlag> featureFlags = projectConfig.getFeatureFlags();
+        if (featureFlags == null || featureFlags.isEmpty()) {
+            return new FeatureSnapshot(userId, projectConfig.getRevision(), KeyTable.EMPTY, new boolean[0], new KeyTable[0], new byte[0], new long[0], new String[0]);
+        }
+        Map<String, Experiment> experiments = new HashMap<>();
+        List<Experiment> experimentList = projectConfig.getExperiments();
+        if (experimentList != null) {
+            for (Experiment experiment : experimentList) {
+                experiments.put(experiment.getId(), experiment);
+            }
+        }
+        int variableCount = 0;
+        for (FeatureFlag featureFlag : featureFlags) {
+            if (featureFlag.getVariables() != null) {
+                variableCount += featureFlag.getVariables().size();
+            }
+        }
+        KeyTable features = new KeyTable(featureFlags.size());
+        boolean[] enabled = new boolean[featureFlags.size()];
+        KeyTable[] variables = new KeyTable[featureFlags.size()];
+        byte[] types = new byte[variableCount];
+        long[] values = new long[variableCount];
+        String[] strings = new String[variableCount];
+        int variableIndex = 0;
+        for (int feature = 0; feature < featureFlags.size(); feature++) {
+            FeatureFlag featureFlag = featureFlags.get(feature);
+            String featureKey = featureFlag.getKey();
+            features.put(featureKey, feature);
+            Variation variation = null;
+            try {
+                variation = getFeatureTestVariation(client, featureFlag, experiments, userId, attributes);
+                enabled[feature] = variation != null
+                        ? Boolean.TRUE.equals(variation.getFeatureEnabled())
+                        : Boolean.TRUE.equals(client.isFeatureEnabled(featureKey, userId, attributes));
+            } catch (Exception ex) {
+                Logger.warning("Unable to evaluate Optimizely feature \"" + featureKey + "\": " + ex.getMessage());
+            }
+            List<FeatureVariable> featureVariables = featureFlag.getVariables();
+            if (featureVariables == null || featureVariables.isEmpty()) {
+                variables[feature] = KeyTable.EMPTY;
+                continue;
+            }
+            Map<String, String> usages = enabled[feature] && variation != null ? getUsages(variation) : null;
+            variables[feature] = new KeyTable(featureVariables.size());
+            for (FeatureVariable featureVariable : featureVariables) {
+                String variableKey = featureVariable.getKey();
+                variables[feature].put(variableKey, variableIndex);
+                try {
+                    if (!enabled[feature]) {
+                        parseVariable(featureVariable.getType(), featureVariable.getDefaultValue(), variableIndex, types, values, strings);
+                    } else if (usages != null) {
+                        String value = usages.get(featureVariable.getId());
+                        parseVariable(featureVariable.getType(), value != null ? value : featureVariable.getDefaultValue(), variableIndex, types, values, strings);
+                    } else {
+                        evaluateVariable(client, featureKey, featureVariable, userId, attributes, variableIndex, types, values, strings);
+                    }
+                } catch (Exception ex) {
+                    Logger.warning("Unable to evaluate Optimizely variable \"" + variableKey + "\" of \"" + featureKey + "\": " + ex.getMessage());
+                }
+                variableIndex++;
+            }
+        }
+        return new FeatureSnapshot(userId, projectConfig.getRevision(), features, enabled, variables, types, values, strings);
+    }
+
+    /**
+     * @return the variation of the feature test the user is bucketed into, or null if they aren't in one
+     */
+    private static Variation getFeatureTestVariation(OptimizelyClient client, FeatureFlag featureFlag, Map<String, Experiment> experiments,
+                                                     String userId, Map<String, ?> attributes) {
+        List<String> experimentIds = featureFlag.getExperimentIds();
+        if (experimentIds != null) {
+            for (String experimentId : experimentIds) {
+                Experiment experiment = experiments.get(experimentId);
+                Variation variation = experiment == null ? null : client.getVariation(experiment.getKey(), userId, attributes);
+                if (variation != null) {
+                    return variation;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the variation's variable values by variable id
+     */
+    private static Map<String, String> getUsages(Variation variation) {
+        List<FeatureVariableUsageInstance> usageList = variation.getFeatureVariableUsageInstances();
+        if (usageList == null || usageList.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> usages = new HashMap<>(usageList.size() * 2);
+        for (FeatureVariableUsageInstance usage : usageList) {
+            usages.put(usage.getId(), usage.getValue());
+        }
+        return usages;
+    }
+
+    /**
+     * Parse a variable value from the datafile, leaving the variable missing if it doesn't parse as its type
+     */
+    private static void parseVariable(FeatureVariable.VariableType type, String value, int index, byte[] types, long[] values, String[] strings) {
+        if (type == null || value == null) {
+            return;
+        }
+        switch (type) {
+            case BOOLEAN:
+                if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+                    types[index] = BOOLEAN;
+                    values[index] = Boolean.parseBoolean(value) ? 1 : 0;
+                }
+                break;
+            case INTEGER:
+                try {
+                    values[index] = Integer.parseInt(value);
+                    types[index] = INTEGER;
+                } catch (NumberFormatException ignore) {
+
+                }
+                break;
+            case DOUBLE:
+                try {
+                    values[index] = Double.doubleToRawLongBits(Double.parseDouble(value));
+                    types[index] = DOUBLE;
+                } catch (NumberFormatException ignore) {
+
+                }
+                break;
+            case STRING:
+                types[index] = STRING;
+                strings[index] = value;
+                break;
+        }
+    }
+
+    private static void evaluateVariable(OptimizelyClient client, String featureKey, FeatureVariable featureVariable, String userId, Map<String, ?> attributes,
+                                         int index, byte[] types, long[] values, String[] strings) {
+        String variableKey = featureVariable.getKey();
+        FeatureVariable.VariableType type = featureVariable.getType();
+        if (type == null) {
+            return;
+        }
+        switch (type) {
+            case BOOLEAN:
+                Boolean booleanValue = client.getFeatureVariableBoolean(featureKey, variableKey, userId, attributes);
+                if (booleanValue != null) {
+                    types[index] = BOOLEAN;
+                    values[index] = booleanValue ? 1 : 0;
+                }
+                break;
+            case INTEGER:
+                Integer integerValue = client.getFeatureVariableInteger(featureKey, variableKey, userId, attributes);
+                if (integerValue != null) {
+                    types[index] = INTEGER;
+                    values[index] = integerValue;
+                }
+                break;
+            case DOUBLE:
+                Double doubleValue = client.getFeatureVariableDouble(featureKey, variableKey, userId, attributes);
+                if (doubleValue != null) {
+                    types[index] = DOUBLE;
+                    values[index] = Double.doubleToRawLongBits(doubleValue);
+                }
+                break;
+            case STRING:
+                String stringValue = client.getFeatureVariableString(featureKey, variableKey, userId, attributes);
+                if (stringValue != null) {
+                    types[index] = STRING;
+                    strings[index] = stringValue;
+                }
+                break;
+        }
+    }
+
+    /**
+     * String keys to int values, in open-addressed arrays with linear probing. Written only while
+     * its snapshot is being built
+     */
+    static class KeyTable {
+        static final KeyTable EMPTY = new KeyTable(0);
+
+        private final String[] mKeys;
+        private final int[] mValues;
+        private final int mMask;
+
+        KeyTable(int size) {
+            //at most half full, so probe sequences stay short
+            int capacity = Integer.highestOneBit(Math.max(1, size * 2 - 1)) << 1;
+            mKeys = new String[capacity];
+            mValues = new int[capacity];
+            mMask = capacity - 1;
+        }
+
+        void put(String key, int value) {
+            if (key == null) {
+                return;
+            }
+            int slot = spread(key.hashCode()) & mMask;
+            while (mKeys[slot] != null && !mKeys[slot].equals(key)) {
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[slot] = key;
+            mValues[slot] = value;
+        }
+
+        /**
+         * @return the key's value, or -1 if it isn't in the table
+         */
+        int indexOf(String key) {
+            if (key == null) {
+                return -1;
+            }
+            int slot = spread(key.hashCode()) & mMask;
+            String found;
+            while ((found = mKeys[slot]) != null) {
+                if (found.equals(key)) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mMask;
+            }
+            return -1;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
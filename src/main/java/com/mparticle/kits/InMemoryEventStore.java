@@ -0,0 +1,89 @@
+package com.mparticle.kits;
+
+import java.util.LinkedList;
+
+/**
+ * Heap backed PendingEventStore. Contents are lost when the process dies
+ */
+class InMemoryEventStore implements PendingEventStore {
+    private final LinkedList<OptimizelyKit.OptimizelyEvent> mEvents = new LinkedList<>();
+    private final int mCapacity;
+    private final EvictionPolicy mEvictionPolicy;
+
+    InMemoryEventStore(int capacity) {
+        this(capacity, EvictionPolicy.DROP_OLDEST);
+    }
+
+    InMemoryEventStore(int capacity, EvictionPolicy evictionPolicy) {
+        mCapacity = Math.max(1, capacity);
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    @Override
+    public synchronized int offer(OptimizelyKit.OptimizelyEvent event) {
+        if (mEvents.size() < mCapacity) {
+            mEvents.offer(event);
+            return 0;
+        }
+        if (evict(event.priority)) {
+            mEvents.offer(event);
+        }
+        return 1;
+    }
+
+    /**
+     * Remove the event the eviction policy picks, unless it picks the incoming event
+     * @return false if the incoming event should be dropped instead
+     */
+    private boolean evict(int incomingPriority) {
+        int lowest = Integer.MAX_VALUE;
+        int oldest = -1;
+        int newest = -1;
+        int index = 0;
+        for (OptimizelyKit.OptimizelyEvent event : mEvents) {
+            if (event.priority < lowest) {
+                lowest = event.priority;
+                oldest = index;
+                newest = index;
+            } else if (event.priority == lowest) {
+                newest = index;
+            }
+            index++;
+        }
+        if (incomingPriority < lowest || (incomingPriority == lowest && mEvictionPolicy == EvictionPolicy.DROP_NEWEST)) {
+            return false;
+        }
+        mEvents.remove(mEvictionPolicy == EvictionPolicy.DROP_OLDEST ? oldest : newest);
+        return true;
+    }
+
+    @Override
+    public synchronized OptimizelyKit.OptimizelyEvent poll() {
+        return mEvents.poll();
+    }
+
+    @Override
+    public synchronized int size() {
+        return mEvents.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return mEvents.isEmpty();
+    }
+
+    @Override
+    public int capacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mEvents.clear();
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,345 @@
+package com.mparticle.kits;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the kit's event pipeline. Recording is a striped increment,
+ * so it is cheap enough to leave on in production. Read it through {@link OptimizelyKit#getMetrics()},
+ * or register a {@link Listener} with {@link OptimizelyKit#setMetricsListener(Listener)}.
+ */
+public class KitMetrics {
+    /**
+     * Upper bounds, in microseconds, of the latency histogram buckets. The last bucket is unbounded
+     */
+    static final long[] LATENCY_BUCKETS_MICROS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 50000, 100000, 500000, 1000000};
+
+    public interface Listener {
+        void onMetrics(Snapshot snapshot);
+    }
+
+    /**
+     * Steps of the kit's startup, timed on whichever thread runs them
+     */
+    public enum StartupPhase {
+        /**
+         * all of onKitCreate, on the mParticle initialization thread. Includes the phases below
+         * unless the "backgroundInit" setting is enabled
+         */
+        KIT_CREATE,
+        /**
+         * building the OptimizelyManager
+         */
+        MANAGER_BUILD,
+        /**
+         * loading the persisted datafile, and initializing the client from it
+         */
+        WARM_START,
+        /**
+         * starting the asynchronous datafile fetch
+         */
+        INITIALIZE
+    }
+
+    final StripedCounter received = new StripedCounter();
+    final StripedCounter created = new StripedCounter();
+    final StripedCounter skippedNoUserId = new StripedCounter();
+    final StripedCounter untracked = new StripedCounter();
+    final StripedCounter sampledOut = new StripedCounter();
+    final StripedCounter rateLimited = new StripedCounter();
+    final StripedCounter dedupHits = new StripedCounter();
+    final StripedCounter dedupMisses = new StripedCounter();
+    final StripedCounter attributeParseFailures = new StripedCounter();
+    final StripedCounter queued = new StripedCounter();
+    final StripedCounter dropped = new StripedCounter();
+    final StripedCounter replayed = new StripedCounter();
+    final StripedCounter tracked = new StripedCounter();
+    final Histogram trackLatency = new Histogram();
+    final Histogram replayDuration = new Histogram();
+    private volatile long mKitCreatedNanos;
+    private volatile long mTimeToClientNanos = -1;
+    private final AtomicLongArray mStartupPhaseNanos = new AtomicLongArray(StartupPhase.values().length);
+
+    KitMetrics() {
+        resetStartupPhases();
+    }
+
+    void onKitCreated() {
+        mKitCreatedNanos = System.nanoTime();
+        mTimeToClientNanos = -1;
+        resetStartupPhases();
+    }
+
+    private void resetStartupPhases() {
+        for (int i = 0; i < mStartupPhaseNanos.length(); i++) {
+            mStartupPhaseNanos.set(i, -1);
+        }
+    }
+
+    void recordStartupPhase(StartupPhase phase, long nanos) {
+        mStartupPhaseNanos.set(phase.ordinal(), nanos);
+    }
+
+    void onClientAvailable() {
+        long created = mKitCreatedNanos;
+        if (created != 0 && mTimeToClientNanos < 0) {
+            mTimeToClientNanos = System.nanoTime() - created;
+        }
+    }
+
+    Snapshot snapshot(long dispatchDropped, int pending, boolean replaying) {
+        return new Snapshot(this, dispatchDropped, pending, replaying);
+    }
+
+    static class Histogram {
+        private final AtomicLongArray mCounts = new AtomicLongArray(LATENCY_BUCKETS_MICROS.length + 1);
+        private final StripedCounter mTotalNanos = new StripedCounter();
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS_MICROS.length && micros > LATENCY_BUCKETS_MICROS[bucket]) {
+                bucket++;
+            }
+            mCounts.incrementAndGet(bucket);
+            mTotalNanos.add(nanos);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] counts = new long[mCounts.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = mCounts.get(i);
+            }
+            return new HistogramSnapshot(counts, mTotalNanos.sum());
+        }
+    }
+
+    public static class HistogramSnapshot {
+        private final long[] mCounts;
+        private final long mTotalNanos;
+        private final long mCount;
+
+        HistogramSnapshot(long[] counts, long totalNanos) {
+            mCounts = counts;
+            mTotalNanos = totalNanos;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            mCount = count;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        /**
+         * Bucket upper bounds, in microseconds. {@link #getBucketCounts()} has one more entry, for
+         * everything above the last bound
+         */
+        public long[] getBucketBoundsMicros() {
+            return LATENCY_BUCKETS_MICROS.clone();
+        }
+
+        public long[] getBucketCounts() {
+            return mCounts.clone();
+        }
+
+        /**
+         * @return the upper bound, in microseconds, of the bucket holding the given percentile
+         * (0-100), Long.MAX_VALUE if it is in the unbounded bucket, or -1 if nothing was recorded
+         */
+        public long getPercentileMicros(double percentile) {
+            if (mCount == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && mCounts[i] > 0) {
+                    return i < LATENCY_BUCKETS_MICROS.length ? LATENCY_BUCKETS_MICROS[i] : Long.MAX_VALUE;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public static class Snapshot {
+        private final long mReceived;
+        private final long mCreated;
+        private final long mSkippedNoUserId;
+        private final long mUntracked;
+        private final long mSampledOut;
+        private final long mRateLimited;
+        private final long mDedupHits;
+        private final long mDedupMisses;
+        private final long mAttributeParseFailures;
+        private final long mQueued;
+        private final long mDropped;
+        private final long mReplayed;
+        private final long mTracked;
+        private final long mTimeToClientNanos;
+        private final int mPending;
+        private final long[] mStartupPhaseNanos;
+        private final boolean mReplaying;
+        private final HistogramSnapshot mTrackLatency;
+        private final HistogramSnapshot mReplayDuration;
+
+        Snapshot(KitMetrics metrics, long dispatchDropped, int pending, boolean replaying) {
+            mReceived = metrics.received.sum();
+            mCreated = metrics.created.sum();
+            mSkippedNoUserId = metrics.skippedNoUserId.sum();
+            mUntracked = metrics.untracked.sum();
+            mSampledOut = metrics.sampledOut.sum();
+            mRateLimited = metrics.rateLimited.sum();
+            mDedupHits = metrics.dedupHits.sum();
+            mDedupMisses = metrics.dedupMisses.sum();
+            mAttributeParseFailures = metrics.attributeParseFailures.sum();
+            mQueued = metrics.queued.sum();
+            mDropped = metrics.dropped.sum() + dispatchDropped;
+            mReplayed = metrics.replayed.sum();
+            mTracked = metrics.tracked.sum();
+            mTimeToClientNanos = metrics.mTimeToClientNanos;
+            mPending = pending;
+            mStartupPhaseNanos = new long[metrics.mStartupPhaseNanos.length()];
+            for (int i = 0; i < mStartupPhaseNanos.length; i++) {
+                mStartupPhaseNanos[i] = metrics.mStartupPhaseNanos.get(i);
+            }
+            mReplaying = replaying;
+            mTrackLatency = metrics.trackLatency.snapshot();
+            mReplayDuration = metrics.replayDuration.snapshot();
+        }
+
+        /**
+         * mParticle events (MPEvents and CommerceEvents) that reached the kit
+         */
+        public long getEventsReceived() {
+            return mReceived;
+        }
+
+        /**
+         * Optimizely events created, one per MPEvent or expanded CommerceEvent
+         */
+        public long getEventsCreated() {
+            return mCreated;
+        }
+
+        /**
+         * Events not forwarded because no userId could be resolved
+         */
+        public long getEventsSkippedNoUserId() {
+            return mSkippedNoUserId;
+        }
+
+        /**
+         * Events not forwarded because their event key is not in the datafile
+         */
+        public long getEventsUntracked() {
+            return mUntracked;
+        }
+
+        /**
+         * Events not forwarded because the user is outside the event's sample rate
+         */
+        public long getEventsSampledOut() {
+            return mSampledOut;
+        }
+
+        /**
+         * Events not forwarded because they exceeded the event's rate limit
+         */
+        public long getEventsRateLimited() {
+            return mRateLimited;
+        }
+
+        /**
+         * Events not forwarded because an identical one was forwarded within the dedup window
+         */
+        public long getDedupHits() {
+            return mDedupHits;
+        }
+
+        /**
+         * Events checked against the dedup window and forwarded. Both dedup counters stay at 0 unless
+         * the "dedupWindowMillis" setting is enabled
+         */
+        public long getDedupMisses() {
+            return mDedupMisses;
+        }
+
+        /**
+         * Event attribute values that didn't parse as the type the "eventAttributeSchema" setting
+         * gives them. They are forwarded as strings
+         */
+        public long getAttributeParseFailures() {
+            return mAttributeParseFailures;
+        }
+
+        /**
+         * Events held until the OptimizelyClient became available
+         */
+        public long getEventsQueued() {
+            return mQueued;
+        }
+
+        /**
+         * Events discarded by the pending queue or the dispatch buffer because they were full
+         */
+        public long getEventsDropped() {
+            return mDropped;
+        }
+
+        public long getEventsReplayed() {
+            return mReplayed;
+        }
+
+        /**
+         * Events in the pending queue, waiting for the OptimizelyClient or for the replay to reach them
+         */
+        public int getEventsPending() {
+            return mPending;
+        }
+
+        /**
+         * Whether queued events are being replayed. New events are queued behind them until it finishes
+         */
+        public boolean isReplaying() {
+            return mReplaying;
+        }
+
+        /**
+         * Calls made to OptimizelyClient.track()
+         */
+        public long getEventsTracked() {
+            return mTracked;
+        }
+
+        /**
+         * Time from onKitCreate to the OptimizelyClient becoming available, or -1 if it hasn't yet
+         */
+        public long getTimeToClientMillis() {
+            return mTimeToClientNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(mTimeToClientNanos);
+        }
+
+        /**
+         * @return how long the startup phase took, or -1 if it hasn't run
+         */
+        public long getStartupPhaseMicros(StartupPhase phase) {
+            long nanos = mStartupPhaseNanos[phase.ordinal()];
+            return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+
+        public HistogramSnapshot getTrackLatency() {
+            return mTrackLatency;
+        }
+
+        public HistogramSnapshot getReplayDuration() {
+            return mReplayDuration;
+        }
+    }
+}
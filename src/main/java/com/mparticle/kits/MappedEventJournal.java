@@ -0,0 +1,483 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * File backed PendingEventStore. Events are appended to a memory-mapped journal, so anything that
+ * has been offered survives the process being killed, and is read back one record at a time
+ * rather than loading the whole file onto the heap.
+ *
+ * Layout: a fixed header (magic, version, head offset, tail offset, record count) followed by
+ * length-prefixed records. The high byte of each length prefix holds the event's priority, and an
+ * evicted flag for records removed from the middle of the journal to make room for a higher priority
+ * event. {@link #poll()} advances the head past the next live record, {@link #offer(OptimizelyKit.OptimizelyEvent)}
+ * writes past the tail and only then publishes the new tail in the header. When the end of the
+ * mapping is reached, records are compacted to the front of the file, or the mapping is grown.
+ * A header that fails validation on open, or a record that fails to decode within its length,
+ * causes the journal to be discarded.
+ */
+class MappedEventJournal implements PendingEventStore {
+    static final String FILE_NAME = "mparticle_optimizely_events.journal";
+
+    private static final int MAGIC = 0x4F50544A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 12;
+    private static final int COUNT_OFFSET = 16;
+    static final int INITIAL_SIZE = 32 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final int LENGTH_MASK = 0x00FFFFFF;
+    private static final int PRIORITY_SHIFT = 24;
+    private static final int PRIORITY_MASK = 0x3;
+    private static final int EVICTED = 0x40 << 24;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mCapacity;
+    private final EvictionPolicy mEvictionPolicy;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final Scratch mScratch = new Scratch();
+    private final DataOutputStream mWriter = new DataOutputStream(mScratch);
+    private MappedByteBuffer mBuffer;
+    private int mHead;
+    private int mTail;
+    private int mCount;
+
+    MappedEventJournal(File file, int capacity) throws IOException {
+        this(file, capacity, EvictionPolicy.DROP_OLDEST);
+    }
+
+    MappedEventJournal(File file, int capacity, EvictionPolicy evictionPolicy) throws IOException {
+        mCapacity = Math.max(1, capacity);
+        mEvictionPolicy = evictionPolicy;
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            long length = mChannel.size();
+            map((int) Math.min(MAX_SIZE, Math.max(INITIAL_SIZE, length)));
+            if (!readHeader()) {
+                if (length > 0) {
+                    Logger.warning("Optimizely event journal failed validation, discarding pending events");
+                }
+                reset();
+            }
+            while (mCount > mCapacity) {
+                skip();
+            }
+        } catch (IOException | RuntimeException ex) {
+            //the journal is unusable, don't leak its file handle
+            try {
+                mChannel.close();
+                mFile.close();
+            } catch (IOException ignore) {
+
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public synchronized int offer(OptimizelyKit.OptimizelyEvent event) {
+        try {
+            mScratch.reset();
+            write(event);
+            int recordSize = 4 + mScratch.size();
+            if (HEADER_SIZE + recordSize > MAX_SIZE) {
+                Logger.warning("Optimizely event too large to journal, dropping");
+                return 1;
+            }
+            int dropped = mCount;
+            if (mCount >= mCapacity && !evict(event.priority)) {
+                return 1;
+            }
+            ensureSpace(recordSize);
+            mBuffer.position(mTail);
+            mBuffer.putInt(((Math.max(0, Math.min(PRIORITY_MASK, event.priority))) << PRIORITY_SHIFT) | mScratch.size());
+            mBuffer.put(mScratch.buffer(), 0, mScratch.size());
+            mTail += recordSize;
+            //ensureSpace() may also have evicted events, if the journal hit its size limit
+            dropped -= mCount;
+            mCount++;
+            writeHeader();
+            return dropped;
+        } catch (IOException ex) {
+            Logger.warning("Unable to journal Optimizely event: " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    @Override
+    public synchronized OptimizelyKit.OptimizelyEvent poll() {
+        if (mCount == 0) {
+            return null;
+        }
+        skipEvicted();
+        int prefix = mBuffer.getInt(mHead);
+        int length = prefix & LENGTH_MASK;
+        mBuffer.position(mHead + 4);
+        OptimizelyKit.OptimizelyEvent event;
+        try {
+            event = read(mHead + 4 + length);
+            event.priority = (prefix >>> PRIORITY_SHIFT) & PRIORITY_MASK;
+        } catch (RuntimeException ex) {
+            Logger.warning("Corrupt Optimizely event journal record, discarding pending events");
+            reset();
+            return null;
+        }
+        mHead += 4 + length;
+        mCount--;
+        if (mCount == 0) {
+            mHead = HEADER_SIZE;
+            mTail = HEADER_SIZE;
+        }
+        writeHeader();
+        return event;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    @Override
+    public int capacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public synchronized void clear() {
+        reset();
+    }
+
+    @Override
+    public synchronized void close() {
+        mBuffer.force();
+        try {
+            mChannel.close();
+            mFile.close();
+        } catch (IOException ignore) {
+
+        }
+    }
+
+    /**
+     * Remove the record the eviction policy picks, unless it picks the incoming event
+     * @return false if the incoming event should be dropped instead
+     */
+    private boolean evict(int incomingPriority) {
+        int lowest = Integer.MAX_VALUE;
+        int oldest = -1;
+        int newest = -1;
+        for (int position = mHead; position < mTail; position += 4 + (mBuffer.getInt(position) & LENGTH_MASK)) {
+            int prefix = mBuffer.getInt(position);
+            if ((prefix & EVICTED) != 0) {
+                continue;
+            }
+            int priority = (prefix >>> PRIORITY_SHIFT) & PRIORITY_MASK;
+            if (priority < lowest) {
+                lowest = priority;
+                oldest = position;
+                newest = position;
+            } else if (priority == lowest) {
+                newest = position;
+            }
+        }
+        if (incomingPriority < lowest || (incomingPriority == lowest && mEvictionPolicy == EvictionPolicy.DROP_NEWEST)) {
+            return false;
+        }
+        int victim = mEvictionPolicy == EvictionPolicy.DROP_OLDEST ? oldest : newest;
+        if (victim == mHead) {
+            skip();
+        } else {
+            //leave a tombstone, poll() and compaction step over it
+            mBuffer.putInt(victim, mBuffer.getInt(victim) | EVICTED);
+            mCount--;
+            writeHeader();
+        }
+        return true;
+    }
+
+    /**
+     * Advance the head past evicted records, so it points at the oldest live one
+     */
+    private void skipEvicted() {
+        while (mHead < mTail && (mBuffer.getInt(mHead) & EVICTED) != 0) {
+            mHead += 4 + (mBuffer.getInt(mHead) & LENGTH_MASK);
+        }
+    }
+
+    private void skip() {
+        skipEvicted();
+        mHead += 4 + (mBuffer.getInt(mHead) & LENGTH_MASK);
+        mCount--;
+        if (mCount == 0) {
+            mHead = HEADER_SIZE;
+            mTail = HEADER_SIZE;
+        }
+        writeHeader();
+    }
+
+    private void ensureSpace(int recordSize) throws IOException {
+        if (mTail + recordSize <= mBuffer.capacity()) {
+            return;
+        }
+        while (HEADER_SIZE + (mTail - mHead) + recordSize > MAX_SIZE && mCount > 0) {
+            skip();
+        }
+        int live = mTail - mHead;
+        //only compact in place when the live records won't be overwritten while they are moved
+        if (live > mHead - HEADER_SIZE && mTail + recordSize <= MAX_SIZE) {
+            map(Math.min(MAX_SIZE, Math.max(mTail + recordSize, mBuffer.capacity() * 2)));
+            return;
+        }
+        compact();
+        if (mTail + recordSize > mBuffer.capacity()) {
+            map(Math.min(MAX_SIZE, Math.max(mTail + recordSize, mBuffer.capacity() * 2)));
+        }
+    }
+
+    private void compact() {
+        if (mHead == HEADER_SIZE) {
+            return;
+        }
+        byte[] chunk = new byte[Math.min(8 * 1024, Math.max(1, mTail - mHead))];
+        int read = mHead;
+        int write = HEADER_SIZE;
+        while (read < mTail) {
+            int length = Math.min(chunk.length, mTail - read);
+            mBuffer.position(read);
+            mBuffer.get(chunk, 0, length);
+            mBuffer.position(write);
+            mBuffer.put(chunk, 0, length);
+            read += length;
+            write += length;
+        }
+        mTail = write;
+        mHead = HEADER_SIZE;
+        writeHeader();
+    }
+
+    private void map(int size) throws IOException {
+        if (mChannel.size() < size) {
+            mFile.setLength(size);
+        }
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private boolean readHeader() {
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            return false;
+        }
+        int head = mBuffer.getInt(HEAD_OFFSET);
+        int tail = mBuffer.getInt(TAIL_OFFSET);
+        int count = mBuffer.getInt(COUNT_OFFSET);
+        if (head < HEADER_SIZE || tail < head || tail > mBuffer.capacity() || count < 0) {
+            return false;
+        }
+        //walk the record lengths, without decoding, to make sure the header agrees with the body
+        int position = head;
+        int records = 0;
+        while (position < tail) {
+            if (position + 4 > tail) {
+                return false;
+            }
+            int prefix = mBuffer.getInt(position);
+            int length = prefix & LENGTH_MASK;
+            if (length <= 0 || position + 4 + length > tail) {
+                return false;
+            }
+            position += 4 + length;
+            if ((prefix & EVICTED) == 0) {
+                records++;
+            }
+        }
+        if (records != count) {
+            return false;
+        }
+        mHead = head;
+        mTail = tail;
+        mCount = count;
+        return true;
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(HEAD_OFFSET, mHead);
+        mBuffer.putInt(TAIL_OFFSET, mTail);
+        mBuffer.putInt(COUNT_OFFSET, mCount);
+    }
+
+    private void reset() {
+        mHead = HEADER_SIZE;
+        mTail = HEADER_SIZE;
+        mCount = 0;
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        writeHeader();
+    }
+
+    private void write(OptimizelyKit.OptimizelyEvent event) throws IOException {
+        writeString(event.eventName);
+        writeString(event.userId);
+        if (event.userAttributes == null) {
+            mWriter.writeInt(-1);
+        } else {
+            mWriter.writeInt(event.userAttributes.size());
+            for (Map.Entry<String, ?> entry : event.userAttributes.entrySet()) {
+                writeString(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+        if (event.eventAttributes == null) {
+            mWriter.writeInt(-1);
+        } else {
+            mWriter.writeInt(event.eventAttributes.size());
+            for (Map.Entry<String, Object> entry : event.eventAttributes.entrySet()) {
+                writeString(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            mWriter.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            mWriter.writeInt(bytes.length);
+            mWriter.write(bytes);
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            mWriter.writeByte(TYPE_NULL);
+        } else if (value instanceof Integer) {
+            mWriter.writeByte(TYPE_INTEGER);
+            mWriter.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            mWriter.writeByte(TYPE_LONG);
+            mWriter.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            mWriter.writeByte(TYPE_DOUBLE);
+            mWriter.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            mWriter.writeByte(TYPE_BOOLEAN);
+            mWriter.writeBoolean((Boolean) value);
+        } else {
+            mWriter.writeByte(TYPE_STRING);
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Decode the record at the buffer's position. Lengths and counts are checked against the end of
+     * the record before anything is allocated for them, so a corrupt record can't exhaust the heap
+     * @param end the offset just past the record
+     * @throws IllegalStateException if the record is corrupt
+     */
+    private OptimizelyKit.OptimizelyEvent read(int end) {
+        OptimizelyKit.OptimizelyEvent event = new OptimizelyKit.OptimizelyEvent();
+        event.eventName = readString(end);
+        event.userId = readString(end);
+        int userAttributeCount = readCount(end);
+        if (userAttributeCount >= 0) {
+            Map<String, Object> userAttributes = new HashMap<>(userAttributeCount * 2);
+            for (int i = 0; i < userAttributeCount; i++) {
+                userAttributes.put(readString(end), readValue(end));
+            }
+            event.userAttributes = userAttributes;
+        }
+        int eventAttributeCount = readCount(end);
+        if (eventAttributeCount >= 0) {
+            event.eventAttributes = new HashMap<>(eventAttributeCount * 2);
+            for (int i = 0; i < eventAttributeCount; i++) {
+                event.eventAttributes.put(readString(end), readValue(end));
+            }
+        }
+        if (mBuffer.position() != end) {
+            throw new IllegalStateException("Record length mismatch");
+        }
+        return event;
+    }
+
+    /**
+     * @return the number of attributes that follow, or -1 if there are none
+     */
+    private int readCount(int end) {
+        int count = mBuffer.getInt();
+        //each attribute is at least a key length and a value type
+        if (count < -1 || count > (end - mBuffer.position()) / 5) {
+            throw new IllegalStateException("Invalid attribute count: " + count);
+        }
+        return count;
+    }
+
+    private String readString(int end) {
+        int length = mBuffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > end - mBuffer.position()) {
+            throw new IllegalStateException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        mBuffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private Object readValue(int end) {
+        byte type = mBuffer.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INTEGER:
+                return mBuffer.getInt();
+            case TYPE_LONG:
+                return mBuffer.getLong();
+            case TYPE_DOUBLE:
+                return mBuffer.getDouble();
+            case TYPE_BOOLEAN:
+                return mBuffer.get() != 0;
+            case TYPE_STRING:
+                return readString(end);
+            default:
+                throw new IllegalStateException("Unknown value type: " + type);
+        }
+    }
+
+    private static class Scratch extends ByteArrayOutputStream {
+        Scratch() {
+            super(256);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
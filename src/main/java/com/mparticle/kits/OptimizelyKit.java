@@ -14,29 +14,116 @@ import com.mparticle.internal.MPUtility;
 import com.optimizely.ab.android.sdk.OptimizelyClient;
 import com.optimizely.ab.android.sdk.OptimizelyManager;
 import com.optimizely.ab.android.sdk.OptimizelyStartListener;
+import com.optimizely.ab.config.ProjectConfig;
 import com.optimizely.ab.config.Variation;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-public class OptimizelyKit extends KitIntegration implements KitIntegration.EventListener, KitIntegration.CommerceListener, OptimizelyStartListener {
-    private static boolean providedClient = false;
-    private static OptimizelyClient mOptimizelyClient;
-    private static List<OptimizelyClientListener> mStartListeners = new ArrayList<>();
+public class OptimizelyKit extends KitIntegration implements KitIntegration.EventListener, KitIntegration.CommerceListener, KitIntegration.AttributeListener, KitIntegration.IdentityListener, OptimizelyStartListener {
+    private static volatile boolean providedClient = false;
+    private static volatile OptimizelyClient mOptimizelyClient;
+    private static final ClientRegistry mClientRegistry = new ClientRegistry();
 
-    protected final Queue<OptimizelyEvent> mEventQueue = new LinkedList<>();
+    final static int DEFAULT_PENDING_QUEUE_CAPACITY = 10;
+
+    protected PendingEventStore mEventQueue = new InMemoryEventStore(DEFAULT_PENDING_QUEUE_CAPACITY);
+    private volatile AsyncEventDispatcher mDispatcher;
+    private final UserAttributeCache mUserAttributes = new UserAttributeCache();
+    private volatile UserIdResolver mUserIdResolver;
+    private volatile ResolvedUserId mResolvedUserId;
+    private final ProjectConfigTracker mProjectConfig = new ProjectConfigTracker();
+    private volatile EventKeyIndex mEventKeyIndex;
+    private volatile AttributeProjection mAttributeProjection;
+    private volatile EventThrottle mEventThrottle = EventThrottle.NONE;
+    private volatile EventDeduplicator mDeduplicator;
+    private volatile boolean mOptedOut;
+    private volatile EventAttributeSchema mAttributeSchema = EventAttributeSchema.NONE;
+    private final DecisionCache mDecisions = new DecisionCache();
+    private volatile OptimizelyManager mOptimizelyManager;
+    private final BackgroundInitializer mInitializer = new BackgroundInitializer("mParticle-Optimizely-init");
+    private final KitMetrics mMetrics = new KitMetrics();
+    private volatile KitMetrics.Listener mMetricsListener;
+    private final EventTrace mTrace = new EventTrace(EventTrace.DEFAULT_CAPACITY);
+    private volatile FeatureSnapshot mFeatureSnapshot = FeatureSnapshot.EMPTY;
+    private volatile boolean mFeatureSnapshotEnabled = true;
+    //diffs a refreshed datafile off the UI thread, for the lookups that may be called from it
+    private final CoalescingRefresher mProjectConfigRefresher = new CoalescingRefresher("mParticle-Optimizely-datafile-diff", new Runnable() {
+        @Override
+        public void run() {
+            mProjectConfig.update(mOptimizelyClient);
+        }
+    });
+    //mpids whose attributes are being loaded for decide()
+    private final Set<Long> mAttributeLoads = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final CoalescingRefresher mFeatureRefresher = new CoalescingRefresher("mParticle-Optimizely-features", new Runnable() {
+        @Override
+        public void run() {
+            refreshFeatureSnapshot();
+        }
+    });
+    private final QueueReplayer mReplayer = new QueueReplayer(new QueueReplayer.Target() {
+        @Override
+        public PendingEventStore getPendingEventStore() {
+            return mEventQueue;
+        }
+
+        @Override
+        public boolean isReady() {
+            OptimizelyClient optimizelyClient = mOptimizelyClient;
+            return optimizelyClient != null && optimizelyClient.isValid();
+        }
+
+        @Override
+        public void replay(OptimizelyEvent event) {
+            replayEvent(event);
+        }
+
+        @Override
+        public void onReplayFinished(long replayed, long durationNanos) {
+            mMetrics.replayDuration.record(durationNanos);
+            if (EventTrace.isDebugLogging()) {
+                Logger.debug(String.format("Replayed %d queued Optimizely events in %dms", replayed, TimeUnit.NANOSECONDS.toMillis(durationNanos)));
+            }
+            publishMetrics();
+        }
+    });
     final static String USER_ID_FIELD_KEY = "userIdField";
     final static String EVENT_INTERVAL = "eventInterval";
     final static String DATAFILE_INTERVAL = "datafileInterval";
     final static String PROJECT_ID = "projectId";
+    final static String PENDING_QUEUE_CAPACITY = "pendingQueueCapacity";
+    final static String PENDING_QUEUE_EVICTION = "pendingQueueEviction";
+    final static String WARM_START = "warmStart";
+    final static String BACKGROUND_INIT = "backgroundInit";
+    final static String PERSIST_PENDING_EVENTS = "persistPendingEvents";
+    final static String ASYNC_DISPATCH = "asyncDispatch";
+    final static String DISPATCH_BUFFER_SIZE = "dispatchBufferSize";
+    final static String DISPATCH_BACKPRESSURE = "dispatchBackpressure";
+    final static String EVENT_RATE_LIMITS = "eventRateLimits";
+    final static String EVENT_SAMPLE_RATES = "eventSampleRates";
+    final static String REPLAY_CHUNK_SIZE = "replayChunkSize";
+    final static String REPLAY_YIELD_MILLIS = "replayYieldMillis";
+    final static String EVENT_ATTRIBUTE_SCHEMA = "eventAttributeSchema";
+    final static String DEDUP_WINDOW_MILLIS = "dedupWindowMillis";
+    final static String DEDUP_CAPACITY = "dedupCapacity";
+    final static String EVENT_TRACE = "eventTrace";
+    final static String EVENT_TRACE_SIZE = "eventTraceSize";
+    final static String FEATURE_SNAPSHOT = "featureSnapshot";
 
     final static String USER_ID_CUSTOMER_ID_VALUE = "customerId";
     final static String USER_ID_EMAIL_VALUE = "email";
@@ -51,6 +138,36 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
     final public static String OPTIMIZELY_EVENT_NAME = "Optimizely.EventName";
     final public static String OPTIMIZELY_USER_ID = "Optimizely.UserId";
 
+    {
+        mProjectConfig.addListener(new ProjectConfigTracker.Listener() {
+            @Override
+            public void onProjectConfigChanged(ProjectConfig previous, ProjectConfig current, DatafileDiff diff) {
+                if (diff.isEmpty()) {
+                    //the same datafile, in a new OptimizelyClient
+                    return;
+                }
+                if (EventTrace.isDebugLogging()) {
+                    Logger.debug("Optimizely datafile changed: " + diff);
+                }
+                boolean full = diff.isFull();
+                if (full || !diff.eventKeys.isEmpty()) {
+                    mEventKeyIndex = EventKeyIndex.build(current);
+                }
+                if (full || !diff.attributeKeys.isEmpty()) {
+                    mAttributeProjection = diff.attributeProjection;
+                }
+                if (full) {
+                    mDecisions.clear();
+                } else {
+                    mDecisions.invalidate(diff.experimentKeys);
+                }
+                if (full || !diff.featureKeys.isEmpty()) {
+                    requestFeatureRefresh();
+                }
+            }
+        });
+    }
+
     @Override
     public String getName() {
         return "Optimizely";
@@ -58,25 +175,160 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
 
     @Override
     protected List<ReportingMessage> onKitCreate(Map<String, String> map, Context context) throws IllegalArgumentException {
+        long start = System.nanoTime();
+        mMetrics.onKitCreated();
+
+        final String sdkKey = map.get(PROJECT_ID);
+        final Long eventInterval = tryParse(map.get(EVENT_INTERVAL));
+        final Long datafileDownloadInterval = tryParse(map.get(DATAFILE_INTERVAL));
+        Long pendingQueueCapacity = tryParse(map.get(PENDING_QUEUE_CAPACITY));
+        Long replayChunkSize = tryParse(map.get(REPLAY_CHUNK_SIZE));
+        Long replayYieldMillis = tryParse(map.get(REPLAY_YIELD_MILLIS));
+        Long eventTraceSize = tryParse(map.get(EVENT_TRACE_SIZE));
+        Long dedupWindowMillis = tryParse(map.get(DEDUP_WINDOW_MILLIS));
+        Long dedupCapacity = tryParse(map.get(DEDUP_CAPACITY));
 
-        String sdkKey = map.get(PROJECT_ID);
-        Long eventInterval = tryParse(map.get(EVENT_INTERVAL));
-        Long datafileDownloadInterval = tryParse(map.get(DATAFILE_INTERVAL));
+        mFeatureSnapshotEnabled = !"false".equalsIgnoreCase(map.get(FEATURE_SNAPSHOT));
+        compileUserIdResolver(map);
+        mEventThrottle = EventThrottle.parse(map.get(EVENT_RATE_LIMITS), map.get(EVENT_SAMPLE_RATES));
+        mAttributeSchema = EventAttributeSchema.parse(map.get(EVENT_ATTRIBUTE_SCHEMA));
+        mDeduplicator = dedupWindowMillis != null && dedupWindowMillis > 0
+                ? new EventDeduplicator(dedupWindowMillis, dedupCapacity != null ? dedupCapacity.intValue() : EventDeduplicator.DEFAULT_CAPACITY)
+                : null;
+        mReplayer.configure(
+                replayChunkSize != null ? replayChunkSize.intValue() : QueueReplayer.DEFAULT_CHUNK_SIZE,
+                replayYieldMillis != null ? replayYieldMillis : QueueReplayer.DEFAULT_YIELD_MILLIS);
+        mTrace.configure(
+                eventTraceSize != null ? eventTraceSize.intValue() : EventTrace.DEFAULT_CAPACITY,
+                Boolean.parseBoolean(map.get(EVENT_TRACE)));
+
+        setPendingEventStore(createPendingEventStore(context,
+                pendingQueueCapacity != null ? pendingQueueCapacity.intValue() : DEFAULT_PENDING_QUEUE_CAPACITY,
+                PendingEventStore.EvictionPolicy.parse(map.get(PENDING_QUEUE_EVICTION)),
+                Boolean.parseBoolean(map.get(PERSIST_PENDING_EVENTS))));
+
+        if (Boolean.parseBoolean(map.get(ASYNC_DISPATCH)) && mDispatcher == null) {
+            Long dispatchBufferSize = tryParse(map.get(DISPATCH_BUFFER_SIZE));
+            mDispatcher = new AsyncEventDispatcher(
+                    dispatchBufferSize != null ? dispatchBufferSize.intValue() : AsyncEventDispatcher.DEFAULT_CAPACITY,
+                    AsyncEventDispatcher.Backpressure.parse(map.get(DISPATCH_BACKPRESSURE)),
+                    new AsyncEventDispatcher.Sink() {
+                        @Override
+                        public void dispatch(OptimizelyEvent event) {
+                            trackOptimizelyEvent(event);
+                        }
+                    });
+        }
 
         if (!providedClient && (mOptimizelyClient == null || !mOptimizelyClient.isValid())) {
-            OptimizelyManager.Builder builder = OptimizelyManager.builder()
-                    .withSDKKey(sdkKey);
-            if (eventInterval != null) {
-                builder.withEventDispatchInterval(eventInterval);
+            final Context initContext = context;
+            final boolean warmStart = !"false".equalsIgnoreCase(map.get(WARM_START));
+            if (Boolean.parseBoolean(map.get(BACKGROUND_INIT))) {
+                //events logged before the client is available are held in the pending queue, as usual
+                mInitializer.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            initializeOptimizely(initContext, sdkKey, eventInterval, datafileDownloadInterval, warmStart);
+                        } catch (Exception ex) {
+                            Logger.error("Unable to initialize Optimizely: " + ex.getMessage());
+                        }
+                    }
+                }, mOptedOut);
+            } else {
+                initializeOptimizely(context, sdkKey, eventInterval, datafileDownloadInterval, warmStart);
             }
-            if (datafileDownloadInterval != null) {
-                builder.withDatafileDownloadInterval(datafileDownloadInterval);
+        } else if (mOptimizelyClient != null && mOptimizelyClient.isValid()) {
+            mMetrics.onClientAvailable();
+            //events may have been persisted by a previous session
+            mReplayer.start();
+        }
+        mMetrics.recordStartupPhase(KitMetrics.StartupPhase.KIT_CREATE, System.nanoTime() - start);
+        return null;
+    }
+
+    /**
+     * Build the OptimizelyManager, warm start from the datafile the SDK cached, and start fetching the
+     * latest one. Runs in onKitCreate, or on a background thread if the "backgroundInit" setting is enabled
+     */
+    private void initializeOptimizely(Context context, String sdkKey, Long eventInterval, Long datafileDownloadInterval, boolean warmStart) {
+        long start = System.nanoTime();
+        OptimizelyManager.Builder builder = OptimizelyManager.builder()
+                .withSDKKey(sdkKey);
+        if (eventInterval != null) {
+            builder.withEventDispatchInterval(eventInterval);
+        }
+        if (datafileDownloadInterval != null) {
+            builder.withDatafileDownloadInterval(datafileDownloadInterval);
+        }
+        OptimizelyManager optimizelyManager = builder.build(context);
+        mOptimizelyManager = optimizelyManager;
+        long built = System.nanoTime();
+        mMetrics.recordStartupPhase(KitMetrics.StartupPhase.MANAGER_BUILD, built - start);
+        //the kit was destroyed while initializing in the background, don't publish a client for it
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        if (context != null && warmStart) {
+            warmStart(context, optimizelyManager);
+        }
+        long warmStarted = System.nanoTime();
+        mMetrics.recordStartupPhase(KitMetrics.StartupPhase.WARM_START, warmStarted - built);
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        //fetch the latest datafile. If the warm start worked, onStart() swaps in the refreshed client
+        optimizelyManager.initialize(context, null, this);
+        mMetrics.recordStartupPhase(KitMetrics.StartupPhase.INITIALIZE, System.nanoTime() - warmStarted);
+    }
+
+    /**
+     * Initialize the OptimizelyClient synchronously from the datafile the SDK cached on a previous
+     * launch, so that it is available as soon as onKitCreate returns. The SDK caches every datafile
+     * it downloads, per SDK key, so the kit doesn't keep a copy of its own
+     */
+    private void warmStart(Context context, OptimizelyManager optimizelyManager) {
+        try {
+            //the cached datafile, or null if there isn't one, since no raw resource is passed
+            String datafile = optimizelyManager.getDatafile(context, null);
+            if (MPUtility.isEmpty(datafile)) {
+                return;
+            }
+            OptimizelyClient optimizelyClient = optimizelyManager.initialize(context, datafile);
+            if (optimizelyClient != null && optimizelyClient.isValid()) {
+                onStart(optimizelyClient);
             }
-            OptimizelyManager optimizelyManager = builder.build(context);
+        } catch (Exception ex) {
+            //the download started by initialize() replaces the cached datafile
+            Logger.warning("Unable to initialize Optimizely from the cached datafile: " + ex.getMessage());
+        }
+    }
 
-            optimizelyManager.initialize(context, null, this);
+    private PendingEventStore createPendingEventStore(Context context, int capacity, PendingEventStore.EvictionPolicy evictionPolicy, boolean persist) {
+        if (persist && context != null) {
+            try {
+                return new MappedEventJournal(new File(context.getFilesDir(), MappedEventJournal.FILE_NAME), capacity, evictionPolicy);
+            } catch (Exception ex) {
+                Logger.warning("Unable to open Optimizely event journal, pending events will be held in memory: " + ex.getMessage());
+            }
+        }
+        return new InMemoryEventStore(capacity, evictionPolicy);
+    }
+
+    /**
+     * Swap the store backing the pending event queue. Events already pending are moved, in order,
+     * to the new store
+     */
+    void setPendingEventStore(PendingEventStore eventStore) {
+        PendingEventStore previous = mEventQueue;
+        mEventQueue = eventStore;
+        if (previous != null && previous != eventStore) {
+            OptimizelyEvent event;
+            while ((event = previous.poll()) != null) {
+                eventStore.offer(event);
+            }
+            previous.close();
         }
-        return null;
     }
 
     @Nullable
@@ -86,25 +338,201 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
 
     /**
      * Add a single use callback for Optimizely Client startup. Your listener will be automatically
-     * removed after it is invoked. To remove it earlier, simply null our your reference
+     * removed after it is invoked. If the client is already available, it is invoked immediately
      * @param startListener
      */
     public static void getOptimizelyClient(OptimizelyClientListener startListener) {
-        if (mOptimizelyClient != null) {
-            startListener.onOptimizelyClientAvailable(mOptimizelyClient);
-        } else {
-            mStartListeners.add(startListener);
+        getOptimizelyClient(startListener, null);
+    }
+
+    /**
+     * Like {@link #getOptimizelyClient(OptimizelyClientListener)}, but the listener is invoked on
+     * the given executor, so slow work in it doesn't hold up the thread that made the client available
+     * @param executor where to invoke the listener, or null to invoke it on the calling thread
+     */
+    public static void getOptimizelyClient(OptimizelyClientListener startListener, @Nullable Executor executor) {
+        mClientRegistry.register(startListener, executor);
+    }
+
+    /**
+     * A handle which completes once the OptimizelyClient becomes available
+     */
+    public static Future<OptimizelyClient> awaitOptimizelyClient() {
+        return mClientRegistry.await();
+    }
+
+    /**
+     * Block until the OptimizelyClient becomes available, or the timeout elapses
+     * @return the client, or null if it was not available in time
+     */
+    @Nullable
+    public static OptimizelyClient awaitOptimizelyClient(long timeout, TimeUnit unit) throws InterruptedException {
+        OptimizelyClient optimizelyClient = mOptimizelyClient;
+        if (optimizelyClient != null) {
+            return optimizelyClient;
+        }
+        try {
+            return mClientRegistry.await().get(timeout, unit);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The current user's variation of the experiment, without sending an impression. Decisions are
+     * cached until the user's attributes or identity, or the datafile, change. Nothing is read from
+     * the mParticle database, and a refreshed datafile isn't diffed, on the calling thread, so this
+     * is cheap enough to call from the UI thread. Until the diff is done, decisions are made
+     * directly by the OptimizelyClient
+     * @return the variation, or null if the user isn't bucketed into the experiment, the
+     * OptimizelyClient isn't available yet, or the user's attributes haven't been loaded yet, in
+     * which case they are loaded in the background
+     */
+    @Nullable
+    public Variation getVariation(String experimentKey) {
+        return decide(experimentKey, false);
+    }
+
+    /**
+     * Like {@link #getVariation(String)}, but also sends an impression the first time each cached
+     * decision is activated
+     */
+    @Nullable
+    public Variation activate(String experimentKey) {
+        return decide(experimentKey, true);
+    }
+
+    /**
+     * Every feature flag and variable, evaluated for the current user on a background thread. A new
+     * snapshot is published after the datafile, the user or their attributes change, so reads are
+     * cheap enough for the UI thread, but may briefly see the previous user or datafile. Reads don't
+     * send impressions
+     * @return the latest snapshot, which is empty until the OptimizelyClient is available, or if the
+     * "featureSnapshot" setting is "false"
+     */
+    public FeatureSnapshot getFeatureSnapshot() {
+        //a new snapshot is published once a changed datafile has been diffed
+        isProjectConfigCurrent(mOptimizelyClient);
+        return mFeatureSnapshot;
+    }
+
+    /**
+     * Block until every event logged before this call has been handed to the OptimizelyClient, or
+     * queued until it becomes available. Returns immediately unless queued events are being
+     * replayed, or the "asyncDispatch" setting is enabled
+     */
+    public void flush() {
+        try {
+            awaitIdle(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Like {@link #flush()}, but gives up after the timeout
+     * @return false if the timeout elapsed before the dispatch buffer was drained
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!mReplayer.awaitIdle(timeout, unit)) {
+            return false;
+        }
+        AsyncEventDispatcher dispatcher = mDispatcher;
+        return dispatcher == null || dispatcher.awaitIdle(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A point-in-time copy of the kit's event pipeline metrics
+     */
+    public KitMetrics.Snapshot getMetrics() {
+        AsyncEventDispatcher dispatcher = mDispatcher;
+        return mMetrics.snapshot(dispatcher != null ? dispatcher.getDroppedCount() : 0, mEventQueue.size(), mReplayer.isReplaying());
+    }
+
+    /**
+     * Register a listener to receive metrics each time they are published: when the events queued
+     * before the OptimizelyClient became available have been replayed, and on {@link #publishMetrics()}
+     */
+    public void setMetricsListener(@Nullable KitMetrics.Listener listener) {
+        mMetricsListener = listener;
+    }
+
+    /**
+     * The most recent event mapping decisions, oldest first. Records are only kept while debug
+     * logging is on, or tracing has been enabled with the "eventTrace" setting or {@link #setEventTraceEnabled(boolean)}
+     */
+    public List<EventTrace.Record> getEventTrace() {
+        return mTrace.dump();
+    }
+
+    /**
+     * Keep an event trace even while debug logging is off
+     */
+    public void setEventTraceEnabled(boolean enabled) {
+        mTrace.setEnabled(enabled);
+    }
+
+    public void publishMetrics() {
+        KitMetrics.Listener listener = mMetricsListener;
+        if (listener != null) {
+            try {
+                listener.onMetrics(getMetrics());
+            } catch (Exception e) {
+                Logger.warning("Optimizely metrics listener threw an exception: " + e.getMessage());
+            }
         }
     }
 
     public static void setOptimizelyClient(OptimizelyClient optimizelyClient) {
         mOptimizelyClient = optimizelyClient;
         providedClient = optimizelyClient != null;
+        if (optimizelyClient != null) {
+            mClientRegistry.publish(optimizelyClient);
+        } else {
+            mClientRegistry.reset();
+        }
     }
 
+    /**
+     * While opted out, events are dropped before any work is done for them, and activate() doesn't
+     * send impressions. Opting out purges the pending queue, the dispatch buffer and everything
+     * cached for the user
+     */
     @Override
-    public List<ReportingMessage> setOptOut(boolean b) {
-        return null;
+    public List<ReportingMessage> setOptOut(boolean optOut) {
+        mOptedOut = optOut;
+        if (optOut) {
+            //don't start Optimizely for an opted out user, an initialization that is running completes
+            mInitializer.hold();
+            //events that got past the check before the flag was set are dropped in trackOptimizelyEvent()
+            AsyncEventDispatcher dispatcher = mDispatcher;
+            if (dispatcher != null) {
+                dispatcher.clear();
+            }
+            mEventQueue.clear();
+            mUserAttributes.clear();
+            //skips the flag refresh, now that mOptedOut is set
+            onIdentityChanged();
+            mFeatureSnapshot = FeatureSnapshot.EMPTY;
+            EventDeduplicator deduplicator = mDeduplicator;
+            if (deduplicator != null) {
+                deduplicator.clear();
+            }
+            mTrace.clear();
+        } else {
+            mInitializer.resume();
+            requestFeatureRefresh();
+        }
+        List<ReportingMessage> messages = new ArrayList<>(1);
+        messages.add(new ReportingMessage(this, ReportingMessage.MessageType.OPT_OUT, System.currentTimeMillis(), null).setOptOut(optOut));
+        return messages;
+    }
+
+    boolean isOptedOut() {
+        return mOptedOut;
     }
 
     @Override
@@ -124,6 +552,15 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
 
     @Override
     public List<ReportingMessage> logEvent(MPEvent mpEvent) {
+        if (mOptedOut) {
+            return null;
+        }
+        mMetrics.received.increment();
+        EventKeyIndex eventKeyIndex = getEventKeyIndex();
+        if (eventKeyIndex != null && !eventKeyIndex.contains(mpEvent.getEventName())) {
+            mMetrics.untracked.increment();
+            return null;
+        }
         MParticleUser user = getCurrentUser();
         String customUserId = null;
         String valueString = null;
@@ -137,28 +574,13 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
                 customUserId = userIdList.get(0);
             }
         }
-        final String optimizelyCustomUserId = customUserId;
-        final String optimizelyValueString = valueString;
-        boolean eventCreated = getOptimizelyEvent(mpEvent, user, new OptimizelyEventCallback() {
-            @Override
-            public void onOptimizelyEventCreated(OptimizelyEvent optimizelyEvent) {
-                if (!MPUtility.isEmpty(optimizelyValueString)) {
-                    try {
-                        Double value = Double.parseDouble(optimizelyValueString);
-                        optimizelyEvent.addEventAttribute("value", value);
-                        Logger.debug(String.format("Applying custom value: \"%s\" to Optimizely Event based on customFlag", String.valueOf(value)));
-                    } catch (NumberFormatException ex) {
-                        Logger.error(String.format("Unable to log Optimizely Value \"%s\", failed to parse as a Double", optimizelyValueString));
-                    }
-                }
-                if (!MPUtility.isEmpty(optimizelyCustomUserId)) {
-                    optimizelyEvent.userId = optimizelyCustomUserId;
-                    Logger.debug(String.format("Applying custom userId: \"%s\" to Optimizely Event based on customFlag", optimizelyCustomUserId));
-                }
-                logOptimizelyEvent(optimizelyEvent);
-            }
-        });
+        EventThrottle.Rule throttleRule = mEventThrottle.get(mpEvent.getEventName());
+        if (throttleRule != null && isThrottled(throttleRule, user, customUserId)) {
+            return null;
+        }
+        boolean eventCreated = withUserContext(user, new MPEventContext(mpEvent, valueString, customUserId));
         if (!eventCreated) {
+            mMetrics.skippedNoUserId.increment();
             return null;
         } else {
             return Collections.singletonList(ReportingMessage.fromEvent(this, mpEvent));
@@ -179,6 +601,10 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
 
     @Override
     public List<ReportingMessage> logEvent(final CommerceEvent commerceEvent) {
+        if (mOptedOut) {
+            return null;
+        }
+        mMetrics.received.increment();
         MParticleUser user = getCurrentUser();
         String customEventName = null;
         String customUserId = null;
@@ -194,161 +620,489 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
         }
 
         List<MPEvent> events = CommerceEventUtils.expand(commerceEvent);
-        final String optimizelyCustomEventName = customEventName;
-        final String optimizelyCustomUserId = customUserId;
-        for (final MPEvent event: events) {
-            getOptimizelyEvent(event, user, new OptimizelyEventCallback() {
-                @Override
-                public void onOptimizelyEventCreated(OptimizelyEvent optimizelyEvent) {
-                    //If the event is a Purchase or Refund expanded event
-                    if (commerceEvent.getProductAction() != null && event.getEventName().equals(String.format(CommerceEventUtils.PLUSONE_NAME, commerceEvent.getProductAction()))) {
-                        //parse and apply the "revenue"
-                        String totalAmountString = event.getInfo().get(CommerceEventUtils.Constants.ATT_TOTAL);
-                        if (!MPUtility.isEmpty(totalAmountString)) {
-                            try {
-                                Double totalAmount = Double.valueOf(totalAmountString);
-                                if (totalAmount != null) {
-                                    Integer revenueInCents = Double.valueOf(totalAmount * 100).intValue();
-                                    optimizelyEvent.eventAttributes.put("revenue", revenueInCents);
-                                    Logger.debug(String.format("Applying revenue: \"%s\" to Optimizely Event based on transactionAttributes", revenueInCents));
-                                }
-                            } catch (NumberFormatException ex) {
-                                Logger.error("Unable to parse Revenue value");
-                            }
-                        }
-                        //And apply the custom name, if there is one
-                        if (optimizelyCustomEventName != null) {
-                            optimizelyEvent.eventName = optimizelyCustomEventName;
-                            Logger.debug(String.format("Applying custom eventName: \"%s\" to Optimizely Event based on customFlag", optimizelyCustomEventName));
-                        }
-                    }
-                    //Apply customId, if there is one, to all expanded events
-                    if (optimizelyCustomUserId != null) {
-                        optimizelyEvent.userId = optimizelyCustomUserId;
-                        Logger.debug(String.format("Applying custom userId: \"%s\" to Optimizely Event based on customFlag", optimizelyCustomUserId));
-                    }
-                    logOptimizelyEvent(optimizelyEvent);
+        String plusOneName = RevenueExtractor.plusOneName(commerceEvent.getProductAction());
+        EventKeyIndex eventKeyIndex = getEventKeyIndex();
+        EventThrottle eventThrottle = mEventThrottle;
+        if (eventKeyIndex != null || !eventThrottle.isEmpty()) {
+            List<MPEvent> trackedEvents = new ArrayList<>(events.size());
+            for (MPEvent event : events) {
+                String eventName = event.getEventName();
+                if (customEventName != null && eventName.equals(plusOneName)) {
+                    eventName = customEventName;
                 }
-            });
+                if (eventKeyIndex != null && !eventKeyIndex.contains(eventName)) {
+                    mMetrics.untracked.increment();
+                    continue;
+                }
+                EventThrottle.Rule throttleRule = eventThrottle.get(eventName);
+                if (throttleRule == null || !isThrottled(throttleRule, user, customUserId)) {
+                    trackedEvents.add(event);
+                }
+            }
+            if (trackedEvents.isEmpty()) {
+                return null;
+            }
+            events = trackedEvents;
+        }
+        //resolve the user once, and share it between every expanded event
+        if (!withUserContext(user, new CommerceEventContext(commerceEvent, events, plusOneName, customEventName, customUserId))) {
+            mMetrics.skippedNoUserId.add(events.size());
         }
         return Collections.singletonList(ReportingMessage.fromEvent(this, commerceEvent));
     }
 
+    @Override
+    public void setUserAttribute(String key, String value) {
+        MParticleUser user = getCurrentUser();
+        if (user != null) {
+            mUserAttributes.put(user.getId(), key, value);
+            requestFeatureRefresh();
+        }
+    }
+
+    @Override
+    public void setUserAttributeList(String key, List<String> values) {
+        //attribute lists are not forwarded to Optimizely, make sure a list doesn't shadow a stale single value
+        removeUserAttribute(key);
+    }
+
+    @Override
+    public boolean supportsAttributeLists() {
+        return true;
+    }
+
+    @Override
+    public void setAllUserAttributes(Map<String, String> userAttributes, Map<String, List<String>> userAttributeLists) {
+        MParticleUser user = getCurrentUser();
+        if (user != null) {
+            mUserAttributes.replace(user.getId(), userAttributes);
+            requestFeatureRefresh();
+        }
+    }
+
+    @Override
+    public void removeUserAttribute(String key) {
+        MParticleUser user = getCurrentUser();
+        if (user != null) {
+            mUserAttributes.remove(user.getId(), key);
+            requestFeatureRefresh();
+        }
+    }
+
+    @Override
+    public void setUserIdentity(MParticle.IdentityType identityType, String identity) {
+        onIdentityChanged();
+    }
+
+    @Override
+    public void removeUserIdentity(MParticle.IdentityType identityType) {
+        onIdentityChanged();
+    }
+
+    @Override
+    public List<ReportingMessage> logout() {
+        mUserAttributes.clear();
+        onIdentityChanged();
+        return null;
+    }
+
+    @Override
+    public void onIdentifyCompleted(MParticleUser mParticleUser, FilteredIdentityApiRequest filteredIdentityApiRequest) {
+        onUserChanged(mParticleUser);
+    }
+
+    @Override
+    public void onLoginCompleted(MParticleUser mParticleUser, FilteredIdentityApiRequest filteredIdentityApiRequest) {
+        onUserChanged(mParticleUser);
+    }
+
+    @Override
+    public void onLogoutCompleted(MParticleUser mParticleUser, FilteredIdentityApiRequest filteredIdentityApiRequest) {
+        onUserChanged(mParticleUser);
+    }
+
+    @Override
+    public void onModifyCompleted(MParticleUser mParticleUser, FilteredIdentityApiRequest filteredIdentityApiRequest) {
+        onIdentityChanged();
+    }
+
+    @Override
+    public void onUserIdentified(MParticleUser mParticleUser) {
+        onUserChanged(mParticleUser);
+    }
+
+    private void onUserChanged(MParticleUser user) {
+        //attributes may have been merged into the new user server-side, so reload them on the next event
+        mUserAttributes.clear();
+        //identities, or the DAS, may have changed with the user
+        onIdentityChanged();
+    }
+
+    private void onIdentityChanged() {
+        mResolvedUserId = null;
+        mDecisions.clear();
+        requestFeatureRefresh();
+    }
+
     @Override
     protected void onKitDestroy() {
         super.onKitDestroy();
+        mInitializer.shutdown();
+        mReplayer.shutdown();
+        mFeatureRefresher.shutdown();
+        mProjectConfigRefresher.shutdown();
+        if (mDispatcher != null) {
+            mDispatcher.shutdown();
+            mDispatcher = null;
+        }
+        mEventQueue.close();
         mOptimizelyClient = null;
-        mStartListeners = null;
+        mOptimizelyManager = null;
+        //listeners registered from here on wait for the next kit instance's client
+        mClientRegistry.reset();
     }
 
     @Override
     public void onStart(OptimizelyClient optimizelyClient) {
         //check providedClient, so we don't override a client that the was set explicitly
         if (!providedClient && optimizelyClient != null && optimizelyClient.isValid()) {
+            //queue new events behind the pending ones until they have been replayed
+            mReplayer.hold();
             mOptimizelyClient = optimizelyClient;
-            if (mStartListeners != null) {
-                for (OptimizelyClientListener listener : mStartListeners) {
-                    try {
-                        if (listener != null) {
-                            listener.onOptimizelyClientAvailable(mOptimizelyClient);
-                        }
-                    } catch (Exception e) {
+            mMetrics.onClientAvailable();
+            mProjectConfig.update(optimizelyClient);
+            mReplayer.start();
+            mClientRegistry.publish(optimizelyClient);
+        }
+    }
 
-                    }
-                }
+    void logOptimizelyEvent(OptimizelyEvent trackEvent) {
+        if (mOptedOut) {
+            //the user context arrived after opting out
+            return;
+        }
+        EventDeduplicator deduplicator = mDeduplicator;
+        if (deduplicator != null) {
+            if (deduplicator.isDuplicate(trackEvent)) {
+                mMetrics.dedupHits.increment();
+                return;
+            }
+            mMetrics.dedupMisses.increment();
+        }
+        if (mReplayer.isReplaying()) {
+            //keep new events in order behind the ones being replayed
+            queueEvent(trackEvent);
+            if (!mReplayer.isReplaying() && mOptimizelyClient != null) {
+                //the replay finished without seeing this event
+                mReplayer.start();
             }
-            mStartListeners.clear();
-            replayQueue();
+            return;
         }
+        dispatchOptimizelyEvent(trackEvent);
     }
 
-    void logOptimizelyEvent(OptimizelyEvent trackEvent) {
-        if (mOptimizelyClient != null && mOptimizelyClient.isValid()) {
+    private void dispatchOptimizelyEvent(OptimizelyEvent trackEvent) {
+        AsyncEventDispatcher dispatcher = mDispatcher;
+        if (dispatcher != null) {
+            dispatcher.submit(trackEvent);
+        } else {
+            trackOptimizelyEvent(trackEvent);
+        }
+    }
+
+    void trackOptimizelyEvent(OptimizelyEvent trackEvent) {
+        if (mOptedOut) {
+            return;
+        }
+        OptimizelyClient optimizelyClient = mOptimizelyClient;
+        if (optimizelyClient != null && optimizelyClient.isValid()) {
+            long start = System.nanoTime();
             if (trackEvent.eventAttributes == null) {
-                mOptimizelyClient.track(trackEvent.eventName, trackEvent.userId, trackEvent.userAttributes);
+                optimizelyClient.track(trackEvent.eventName, trackEvent.userId, trackEvent.userAttributes);
             } else {
-                mOptimizelyClient.track(trackEvent.eventName, trackEvent.userId, trackEvent.userAttributes, trackEvent.eventAttributes);
+                optimizelyClient.track(trackEvent.eventName, trackEvent.userId, trackEvent.userAttributes, trackEvent.eventAttributes);
             }
+            mMetrics.trackLatency.record(System.nanoTime() - start);
+            mMetrics.tracked.increment();
+            mTrace.record(EventTrace.Type.TRACKED, trackEvent.eventName, trackEvent.userId);
         } else {
             queueEvent(trackEvent);
         }
     }
 
     String getUserId(MParticleUser user) {
-        String userId = null;
-        if (user != null) {
-            String userIdField = getSettings().get(USER_ID_FIELD_KEY);
-            if (USER_ID_CUSTOMER_ID_VALUE.equalsIgnoreCase(userIdField)) {
-                userId = user.getUserIdentities().get(MParticle.IdentityType.CustomerId);
-            } else if (USER_ID_EMAIL_VALUE.equalsIgnoreCase(userIdField)) {
-                userId = user.getUserIdentities().get(MParticle.IdentityType.Email);
-            } else if (USER_ID_OTHER_VALUE.equalsIgnoreCase(userIdField)) {
-                userId = user.getUserIdentities().get(MParticle.IdentityType.Other);
-            } else if (USER_ID_OTHER2_VALUE.equalsIgnoreCase(userIdField)) {
-                userId = user.getUserIdentities().get(MParticle.IdentityType.Other2);
-            } else if (USER_ID_OTHER3_VALUE.equalsIgnoreCase(userIdField)) {
-                userId = user.getUserIdentities().get(MParticle.IdentityType.Other3);
-            } else if (USER_ID_OTHER4_VALUE.equalsIgnoreCase(userIdField)) {
-                userId = user.getUserIdentities().get(MParticle.IdentityType.Other4);
-            } else if (USER_ID_MPID_VALUE.equalsIgnoreCase(userIdField)) {
-                userId = Long.toString(user.getId());
-            } else if (USER_ID_DAS_VALUE.equalsIgnoreCase(userIdField)) {
-                userId = MParticle.getInstance().Identity().getDeviceApplicationStamp();
-            }
+        ResolvedUserId resolved = mResolvedUserId;
+        if (user != null && resolved != null && resolved.mpid == user.getId()) {
+            return resolved.userId;
         }
+        UserIdResolver resolver = mUserIdResolver;
+        if (resolver == null) {
+            resolver = compileUserIdResolver(getSettings());
+        }
+        String userId = resolver.resolve(user);
         if (userId == null) {
-            userId = MParticle.getInstance().Identity().getDeviceApplicationStamp();
-            Logger.debug("Optimizely userId not found, applying DAS as userId by default");
+            userId = UserIdResolver.getDeviceApplicationStamp();
+            mTrace.record(EventTrace.Type.DAS_USER_ID, null, userId);
+        }
+        if (user != null) {
+            mResolvedUserId = new ResolvedUserId(user.getId(), userId);
         }
         return userId;
     }
 
-    private Boolean getOptimizelyEvent(final MPEvent mpEvent, final MParticleUser user, final OptimizelyEventCallback onEventCreated) {
-        if (!MPUtility.isEmpty(getUserId(user))) {
-            com.mparticle.UserAttributeListener listener = new com.mparticle.UserAttributeListener() {
+    /**
+     * Compile the "userIdField" setting. userIds already resolved are kept, see {@link #onUserIdFieldChanged(Map)}
+     */
+    UserIdResolver compileUserIdResolver(Map<String, String> settings) {
+        UserIdResolver resolver = UserIdResolver.compile(settings == null ? null : settings.get(USER_ID_FIELD_KEY));
+        mUserIdResolver = resolver;
+        return resolver;
+    }
+
+    /**
+     * Recompile a changed "userIdField" setting, and drop any userId resolved with the previous one
+     */
+    void onUserIdFieldChanged(Map<String, String> settings) {
+        compileUserIdResolver(settings);
+        onIdentityChanged();
+    }
+
+    private Variation decide(String experimentKey, boolean activate) {
+        OptimizelyClient optimizelyClient = mOptimizelyClient;
+        if (experimentKey == null || optimizelyClient == null || !optimizelyClient.isValid()) {
+            return null;
+        }
+        boolean current = isProjectConfigCurrent(optimizelyClient);
+        MParticleUser user = getCurrentUser();
+        String userId = getUserId(user);
+        if (MPUtility.isEmpty(userId)) {
+            return null;
+        }
+        UserAttributeCache.Snapshot snapshot = user == null ? UserAttributeCache.EMPTY : mUserAttributes.get(user.getId());
+        if (snapshot == null) {
+            loadUserAttributes(user);
+            return null;
+        }
+        AttributeProjection attributeProjection = mAttributeProjection;
+        Map<String, ?> attributes = attributeProjection != null ? attributeProjection.project(snapshot) : snapshot.attributes;
+        if (!current) {
+            //the cached decisions may be for the previous datafile, until it has been diffed
+            return activate && !mOptedOut
+                    ? optimizelyClient.activate(experimentKey, userId, attributes)
+                    : optimizelyClient.getVariation(experimentKey, userId, attributes);
+        }
+        return mDecisions.get(optimizelyClient, experimentKey, userId, snapshot.version, attributes, activate && !mOptedOut);
+    }
+
+    /**
+     * Check whether the client's datafile has changed, without diffing it on the calling thread
+     * @return false if it has, in which case state derived from it is updated in the background
+     */
+    private boolean isProjectConfigCurrent(OptimizelyClient optimizelyClient) {
+        if (mProjectConfig.isCurrent(optimizelyClient)) {
+            return true;
+        }
+        mProjectConfigRefresher.request();
+        return false;
+    }
+
+    /**
+     * Load and cache the user's attributes in the background, once per user at a time
+     */
+    private void loadUserAttributes(MParticleUser user) {
+        final long mpid = user.getId();
+        if (!mAttributeLoads.add(mpid)) {
+            return;
+        }
+        final long fetchedAtVersion = mUserAttributes.version();
+        try {
+            user.getUserAttributes(new UserAttributeListener() {
                 @Override
                 public void onUserAttributesReceived(@Nullable Map<String, String> userAttributes, @Nullable Map<String, List<String>> userAttributeLists, @Nullable Long aLong) {
-                    Map<String, String> attributes = new HashMap<>();
-                    for (Map.Entry<String, String> entry : userAttributes.entrySet()) {
-                        attributes.put(entry.getKey(), entry.getValue());
-                    }
+                    mAttributeLoads.remove(mpid);
+                    mUserAttributes.load(mpid, userAttributes, fetchedAtVersion);
+                }
+            });
+        } catch (Exception ex) {
+            mAttributeLoads.remove(mpid);
+            Logger.warning("Unable to load user attributes for Optimizely: " + ex.getMessage());
+        }
+    }
 
+    private void requestFeatureRefresh() {
+        if (mFeatureSnapshotEnabled && !mOptedOut) {
+            mFeatureRefresher.request();
+        }
+    }
 
-                    OptimizelyEvent event = new OptimizelyEvent();
-                    String eventName = mpEvent.getEventName();
-                    String userId = getUserId(user);
+    /**
+     * Evaluate the feature flags for the current user. Called on the refresher's thread
+     */
+    void refreshFeatureSnapshot() {
+        OptimizelyClient optimizelyClient = mOptimizelyClient;
+        ProjectConfig projectConfig = mProjectConfig.update(optimizelyClient);
+        if (projectConfig == null) {
+            mFeatureSnapshot = FeatureSnapshot.EMPTY;
+            return;
+        }
+        MParticleUser user = getCurrentUser();
+        String userId = getUserId(user);
+        if (MPUtility.isEmpty(userId)) {
+            mFeatureSnapshot = FeatureSnapshot.EMPTY;
+            return;
+        }
+        UserAttributeCache.Snapshot snapshot = getUserAttributes(user);
+        AttributeProjection attributeProjection = mAttributeProjection;
+        Map<String, ?> attributes = attributeProjection != null ? attributeProjection.project(snapshot) : snapshot.attributes;
+        mFeatureSnapshot = FeatureSnapshot.evaluate(optimizelyClient, projectConfig, userId, attributes);
+        //the user opted out while the flags were being evaluated. setOptOut() sets mOptedOut before
+        //clearing the snapshot, so one of the two clears it
+        if (mOptedOut) {
+            mFeatureSnapshot = FeatureSnapshot.EMPTY;
+        }
+    }
 
-                    event.eventName = eventName;
-                    event.userId = userId;
-                    event.userAttributes = attributes;
-                    if (mpEvent.getCustomAttributes() != null) {
-                        event.eventAttributes = new HashMap<String, Object>(mpEvent.getInfo());
-                    }
-                    onEventCreated.onOptimizelyEventCreated(event);
+    boolean awaitFeatureSnapshot(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFeatureRefresher.awaitIdle(timeout, unit);
+    }
+
+    /**
+     * The user's cached attribute snapshot, loaded synchronously if it hasn't been cached yet. Reads
+     * the mParticle database on a miss, so only call it off the UI thread
+     */
+    private UserAttributeCache.Snapshot getUserAttributes(MParticleUser user) {
+        if (user == null) {
+            return UserAttributeCache.EMPTY;
+        }
+        UserAttributeCache.Snapshot snapshot = mUserAttributes.get(user.getId());
+        if (snapshot != null) {
+            return snapshot;
+        }
+        long fetchedAtVersion = mUserAttributes.version();
+        Map<String, Object> userAttributes = user.getUserAttributes();
+        Map<String, String> attributes = new HashMap<>();
+        if (userAttributes != null) {
+            for (Map.Entry<String, Object> entry : userAttributes.entrySet()) {
+                //attribute lists are not forwarded to Optimizely
+                if (entry.getValue() != null && !(entry.getValue() instanceof List)) {
+                    attributes.put(entry.getKey(), entry.getValue().toString());
                 }
-            };
-            if (user != null) {
-                user.getUserAttributes(listener);
-            } else {
-                listener.onUserAttributesReceived(new HashMap<String, String>(), new HashMap<String, List<String>>(), null);
             }
-            return true;
-        } else {
+        }
+        return mUserAttributes.load(user.getId(), attributes, fetchedAtVersion);
+    }
+
+    /**
+     * Check the event against its rate limit and sample rate. Sampling is by the userId the event
+     * will be tracked with, so it is resolved here, ahead of withUserContext()
+     * @return true if the event should be dropped
+     */
+    private boolean isThrottled(EventThrottle.Rule rule, MParticleUser user, String customUserId) {
+        String userId = null;
+        if (rule.isSampling()) {
+            userId = MPUtility.isEmpty(customUserId) ? getUserId(user) : customUserId;
+            if (MPUtility.isEmpty(userId)) {
+                //the event will be skipped for lack of a userId
+                return false;
+            }
+        }
+        switch (rule.check(userId)) {
+            case EventThrottle.SAMPLED_OUT:
+                mMetrics.sampledOut.increment();
+                return true;
+            case EventThrottle.RATE_LIMITED:
+                mMetrics.rateLimited.increment();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The event keys in the active datafile, rebuilt in the background whenever the datafile changes
+     * @return null until a datafile is available, or while a changed one is being indexed, in which
+     * case events should not be filtered. The previous datafile's index would drop keys the new
+     * one added, so until then the client decides what it tracks
+     */
+    private EventKeyIndex getEventKeyIndex() {
+        return isProjectConfigCurrent(mOptimizelyClient) ? mEventKeyIndex : null;
+    }
+
+    /**
+     * Index the client's datafile in the background if it has changed, and wait for it
+     */
+    boolean awaitDatafileIndexed(long timeout, TimeUnit unit) throws InterruptedException {
+        isProjectConfigCurrent(mOptimizelyClient);
+        return mProjectConfigRefresher.awaitIdle(timeout, unit);
+    }
+
+    /**
+     * @return the number of events that were not forwarded, because their event key is not in the datafile
+     */
+    long getUntrackedEventCount() {
+        return mMetrics.untracked.sum();
+    }
+
+    /**
+     * Resolve the userId and user attributes for the user, and pass them to the callback. This is
+     * synchronous unless the user's attributes have not been cached yet
+     * @return false if there is no userId for the user
+     */
+    private boolean withUserContext(final MParticleUser user, final UserContextCallback callback) {
+        final String userId = getUserId(user);
+        if (MPUtility.isEmpty(userId)) {
             return false;
         }
+        UserAttributeCache.Snapshot snapshot = user == null ? UserAttributeCache.EMPTY : mUserAttributes.get(user.getId());
+        if (snapshot != null) {
+            callback.onUserContext(userId, snapshot);
+        } else {
+            final long fetchedAtVersion = mUserAttributes.version();
+            user.getUserAttributes(new com.mparticle.UserAttributeListener() {
+                @Override
+                public void onUserAttributesReceived(@Nullable Map<String, String> userAttributes, @Nullable Map<String, List<String>> userAttributeLists, @Nullable Long aLong) {
+                    callback.onUserContext(userId, mUserAttributes.load(user.getId(), userAttributes, fetchedAtVersion));
+                }
+            });
+        }
+        return true;
     }
 
-    private void queueEvent(OptimizelyEvent event) {
-        mEventQueue.offer(event);
-        if (mEventQueue.size() > 10) {
-            mEventQueue.remove();
+    private OptimizelyEvent createOptimizelyEvent(MPEvent mpEvent, String userId, UserAttributeCache.Snapshot snapshot) {
+        mMetrics.created.increment();
+        OptimizelyEvent event = new OptimizelyEvent();
+        event.eventName = mpEvent.getEventName();
+        event.userId = userId;
+        AttributeProjection attributeProjection = mAttributeProjection;
+        event.userAttributes = attributeProjection != null ? attributeProjection.project(snapshot) : snapshot.attributes;
+        if (mpEvent.getCustomAttributes() != null) {
+            EventAttributeSchema.Converter converter = mAttributeSchema.get(event.eventName);
+            event.eventAttributes = converter != null
+                    ? converter.convert(mpEvent.getInfo(), mMetrics.attributeParseFailures)
+                    : new HashMap<String, Object>(mpEvent.getInfo());
         }
+        return event;
+    }
+
+    private void queueEvent(OptimizelyEvent event) {
+        mMetrics.queued.increment();
+        mMetrics.dropped.add(mEventQueue.offer(event));
+        mTrace.record(EventTrace.Type.QUEUED, event.eventName, event.userId);
     }
 
-    private void replayQueue() {
-        while (!mEventQueue.isEmpty()) {
-            logOptimizelyEvent(mEventQueue.poll());
+    private void replayEvent(OptimizelyEvent event) {
+        //events queued before the datafile was available haven't been checked yet
+        EventKeyIndex eventKeyIndex = getEventKeyIndex();
+        if (eventKeyIndex != null && !eventKeyIndex.contains(event.eventName)) {
+            mMetrics.untracked.increment();
+            return;
         }
+        AttributeProjection attributeProjection = mAttributeProjection;
+        if (attributeProjection != null) {
+            event.userAttributes = attributeProjection.project(event.userAttributes);
+        }
+        mMetrics.replayed.increment();
+        dispatchOptimizelyEvent(event);
     }
 
 
@@ -361,11 +1115,29 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
         }
     }
 
-    class OptimizelyEvent {
+    private static class ResolvedUserId {
+        final long mpid;
+        final String userId;
+
+        ResolvedUserId(long mpid, String userId) {
+            this.mpid = mpid;
+            this.userId = userId;
+        }
+    }
+
+    static class OptimizelyEvent {
+        /**
+         * Priority classes, which decide what is evicted when the pending queue is full
+         */
+        static final int PRIORITY_DEFAULT = 0;
+        static final int PRIORITY_CUSTOM = 1;
+        static final int PRIORITY_REVENUE = 2;
+
         String eventName;
         String userId;
-        Map<String, String> userAttributes;
+        Map<String, ?> userAttributes;
         Map<String, Object> eventAttributes;
+        int priority = PRIORITY_DEFAULT;
 
         void addEventAttribute(String key, Object value) {
             if (eventAttributes == null) {
@@ -379,7 +1151,101 @@ public class OptimizelyKit extends KitIntegration implements KitIntegration.Even
         void onOptimizelyClientAvailable(OptimizelyClient optimizelyClient);
     }
 
-    private interface OptimizelyEventCallback {
-        void onOptimizelyEventCreated(OptimizelyEvent event);
+    private interface UserContextCallback {
+        void onUserContext(String userId, UserAttributeCache.Snapshot userAttributes);
+    }
+
+    private class MPEventContext implements UserContextCallback {
+        private final MPEvent mpEvent;
+        private final String valueString;
+        private final String customUserId;
+
+        MPEventContext(MPEvent mpEvent, String valueString, String customUserId) {
+            this.mpEvent = mpEvent;
+            this.valueString = valueString;
+            this.customUserId = customUserId;
+        }
+
+        @Override
+        public void onUserContext(String userId, UserAttributeCache.Snapshot userAttributes) {
+            OptimizelyEvent optimizelyEvent = createOptimizelyEvent(mpEvent, userId, userAttributes);
+            if (!MPUtility.isEmpty(valueString)) {
+                try {
+                    Double value = Double.parseDouble(valueString);
+                    optimizelyEvent.addEventAttribute("value", value);
+                    if (mTrace.isEnabled()) {
+                        mTrace.record(EventTrace.Type.CUSTOM_VALUE, mpEvent.getEventName(), String.valueOf(value));
+                    }
+                } catch (NumberFormatException ex) {
+                    Logger.error(String.format("Unable to log Optimizely Value \"%s\", failed to parse as a Double", valueString));
+                }
+            }
+            if (!MPUtility.isEmpty(customUserId)) {
+                optimizelyEvent.userId = customUserId;
+                mTrace.record(EventTrace.Type.CUSTOM_USER_ID, mpEvent.getEventName(), customUserId);
+            }
+            if (!MPUtility.isEmpty(valueString) || !MPUtility.isEmpty(customUserId)) {
+                optimizelyEvent.priority = OptimizelyEvent.PRIORITY_CUSTOM;
+            }
+            logOptimizelyEvent(optimizelyEvent);
+        }
+    }
+
+    /**
+     * Everything the expanded events of a single CommerceEvent have in common
+     */
+    private class CommerceEventContext implements UserContextCallback {
+        private final CommerceEvent commerceEvent;
+        private final List<MPEvent> events;
+        private final String plusOneName;
+        private final String customEventName;
+        private final String customUserId;
+
+        CommerceEventContext(CommerceEvent commerceEvent, List<MPEvent> events, String plusOneName, String customEventName, String customUserId) {
+            this.commerceEvent = commerceEvent;
+            this.events = events;
+            this.plusOneName = plusOneName;
+            this.customEventName = customEventName;
+            this.customUserId = customUserId;
+        }
+
+        @Override
+        public void onUserContext(String userId, UserAttributeCache.Snapshot userAttributes) {
+            for (MPEvent event : events) {
+                OptimizelyEvent optimizelyEvent = createOptimizelyEvent(event, userId, userAttributes);
+                //If the event is a Purchase or Refund expanded event
+                if (plusOneName != null && plusOneName.equals(event.getEventName())) {
+                    optimizelyEvent.priority = OptimizelyEvent.PRIORITY_REVENUE;
+                    //parse and apply the "revenue"
+                    String totalAmountString = event.getInfo().get(CommerceEventUtils.Constants.ATT_TOTAL);
+                    if (!MPUtility.isEmpty(totalAmountString)) {
+                        long revenueInCents = RevenueExtractor.parseCents(totalAmountString);
+                        if (revenueInCents == RevenueExtractor.INVALID) {
+                            Logger.error("Unable to parse Revenue value");
+                        } else {
+                            //Optimizely takes an Integer, only totals past ~21 million need a Long
+                            if (revenueInCents >= Integer.MIN_VALUE && revenueInCents <= Integer.MAX_VALUE) {
+                                optimizelyEvent.eventAttributes.put("revenue", (int) revenueInCents);
+                            } else {
+                                optimizelyEvent.eventAttributes.put("revenue", revenueInCents);
+                            }
+                            mTrace.record(EventTrace.Type.REVENUE, event.getEventName(), null, revenueInCents);
+                        }
+                    }
+                    //And apply the custom name, if there is one
+                    if (customEventName != null) {
+                        optimizelyEvent.eventName = customEventName;
+                        mTrace.record(EventTrace.Type.CUSTOM_EVENT_NAME, event.getEventName(), customEventName);
+                    }
+                }
+                //Apply customId, if there is one, to all expanded events
+                if (customUserId != null) {
+                    optimizelyEvent.priority = Math.max(optimizelyEvent.priority, OptimizelyEvent.PRIORITY_CUSTOM);
+                    optimizelyEvent.userId = customUserId;
+                    mTrace.record(EventTrace.Type.CUSTOM_USER_ID, event.getEventName(), customUserId);
+                }
+                logOptimizelyEvent(optimizelyEvent);
+            }
+        }
     }
 }
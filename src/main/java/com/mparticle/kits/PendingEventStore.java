@@ -0,0 +1,53 @@
+package com.mparticle.kits;
+
+/**
+ * Holds OptimizelyEvents that were created before the OptimizelyClient became available. Events
+ * are handed back in the order they were offered. Implementations are bounded. Once their capacity
+ * is reached, they evict an event from the lowest {@link OptimizelyKit.OptimizelyEvent#priority}
+ * class present, choosing within that class by {@link EvictionPolicy}.
+ */
+interface PendingEventStore {
+
+    enum EvictionPolicy {
+        /**
+         * evict the oldest event of the lowest priority class
+         */
+        DROP_OLDEST,
+        /**
+         * evict the newest event of the lowest priority class, which may be the one being offered
+         */
+        DROP_NEWEST;
+
+        static EvictionPolicy parse(String value) {
+            if ("dropNewest".equalsIgnoreCase(value)) {
+                return DROP_NEWEST;
+            }
+            return DROP_OLDEST;
+        }
+    }
+
+    /**
+     * Append an event to the end of the store
+     * @return the number of events dropped: 0, or 1 if another event was evicted to make room or
+     * the event itself was not stored
+     */
+    int offer(OptimizelyKit.OptimizelyEvent event);
+
+    /**
+     * Remove and return the oldest event, or null if the store is empty
+     */
+    OptimizelyKit.OptimizelyEvent poll();
+
+    int size();
+
+    boolean isEmpty();
+
+    int capacity();
+
+    void clear();
+
+    /**
+     * Release any resources held by the store. Persistent stores keep their contents
+     */
+    void close();
+}
@@ -0,0 +1,70 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+import com.optimizely.ab.config.ProjectConfig;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the ProjectConfig (parsed datafile) of the active OptimizelyClient, so that state derived
+ * from the datafile can be invalidated when it changes. A datafile update, or a new OptimizelyClient,
+ * both surface as a different ProjectConfig instance, so checking for a change is a reference
+ * comparison. Listeners are passed a {@link DatafileDiff} of what changed, which is empty when the
+ * new ProjectConfig has the same revision, and carries the new ProjectConfig's attribute projection.
+ */
+class ProjectConfigTracker {
+    interface Listener {
+        void onProjectConfigChanged(ProjectConfig previous, ProjectConfig current, DatafileDiff diff);
+    }
+
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile ProjectConfig mProjectConfig;
+    private DatafileDiff.Index mIndex;
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    ProjectConfig current() {
+        return mProjectConfig;
+    }
+
+    /**
+     * @return whether the client's ProjectConfig is the tracked one. Unlike {@link #update(OptimizelyClient)},
+     * this never diffs datafiles or notifies listeners on the calling thread
+     */
+    boolean isCurrent(OptimizelyClient client) {
+        ProjectConfig projectConfig = client != null && client.isValid() ? client.getProjectConfig() : null;
+        return projectConfig == mProjectConfig;
+    }
+
+    /**
+     * Check the client's ProjectConfig, and notify listeners if it has changed
+     * @return the current ProjectConfig, or null if there is no valid client or datafile
+     */
+    ProjectConfig update(OptimizelyClient client) {
+        ProjectConfig projectConfig = client != null && client.isValid() ? client.getProjectConfig() : null;
+        if (projectConfig != mProjectConfig) {
+            onChanged(projectConfig);
+        }
+        return projectConfig;
+    }
+
+    void reset() {
+        onChanged(null);
+    }
+
+    private synchronized void onChanged(ProjectConfig projectConfig) {
+        ProjectConfig previous = mProjectConfig;
+        if (previous == projectConfig) {
+            return;
+        }
+        mProjectConfig = projectConfig;
+        DatafileDiff.Index index = DatafileDiff.Index.build(projectConfig, AttributeProjection.build(projectConfig));
+        DatafileDiff diff = DatafileDiff.between(mIndex, index);
+        mIndex = index;
+        for (Listener listener : mListeners) {
+            listener.onProjectConfigChanged(previous, projectConfig, diff);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.mparticle.kits;
+
+import com.mparticle.internal.Logger;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays the pending event queue on a background thread, in chunks of at most "chunkSize" events
+ * with a pause of "yieldMillis" between them, so a large or persisted queue doesn't stall whichever
+ * thread made the OptimizelyClient available.
+ * <p>
+ * While a replay is in progress, {@link #isReplaying()} is true and new events should be queued
+ * behind the pending ones rather than tracked directly. The replay keeps going until the queue is
+ * empty, so those events are picked up too.
+ */
+class QueueReplayer {
+    static final int DEFAULT_CHUNK_SIZE = 50;
+    static final long DEFAULT_YIELD_MILLIS = 5;
+
+    interface Target {
+        PendingEventStore getPendingEventStore();
+
+        /**
+         * @return false if events can't be forwarded yet, in which case the replay stops and
+         * leaves them queued
+         */
+        boolean isReady();
+
+        /**
+         * Forward a replayed event. Called on the replay thread
+         */
+        void replay(OptimizelyKit.OptimizelyEvent event);
+
+        void onReplayFinished(long replayed, long durationNanos);
+    }
+
+    private final Target mTarget;
+    private final AtomicBoolean mReplaying = new AtomicBoolean();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicLong mReplayed = new AtomicLong();
+    private final Object mIdleLock = new Object();
+    private volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile long mYieldMillis = DEFAULT_YIELD_MILLIS;
+    private ScheduledExecutorService mExecutor;
+    private long mStartNanos;
+
+    private final Runnable mChunk = new Runnable() {
+        @Override
+        public void run() {
+            replayChunk();
+        }
+    };
+
+    QueueReplayer(Target target) {
+        mTarget = target;
+    }
+
+    void configure(int chunkSize, long yieldMillis) {
+        mChunkSize = Math.max(1, chunkSize);
+        mYieldMillis = Math.max(0, yieldMillis);
+    }
+
+    boolean isReplaying() {
+        return mReplaying.get();
+    }
+
+    /**
+     * Start queueing new events behind the pending ones, ahead of {@link #start()}. Call this before
+     * the client is made available, so no new event can be tracked ahead of the pending ones
+     */
+    void hold() {
+        mReplaying.set(true);
+    }
+
+    /**
+     * Start replaying, unless a replay is already in progress
+     */
+    void start() {
+        mReplaying.set(true);
+        if (mScheduled.compareAndSet(false, true)) {
+            begin();
+        }
+    }
+
+    /**
+     * The number of events replayed so far by the current, or last, replay
+     */
+    long getReplayedCount() {
+        return mReplayed.get();
+    }
+
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mIdleLock) {
+            while (mScheduled.get()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mIdleLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop replaying. Events still pending stay in the queue
+     */
+    synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mReplaying.set(false);
+        finish();
+    }
+
+    private void begin() {
+        synchronized (mIdleLock) {
+            mStartNanos = System.nanoTime();
+            mReplayed.set(0);
+        }
+        schedule(0);
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (mExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mParticle-Optimizely-replay");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mExecutor = executor;
+        }
+        try {
+            mExecutor.schedule(mChunk, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            Logger.warning("Unable to schedule Optimizely queue replay: " + ex.getMessage());
+            mReplaying.set(false);
+            finish();
+        }
+    }
+
+    private void replayChunk() {
+        PendingEventStore queue = mTarget.getPendingEventStore();
+        if (!mTarget.isReady()) {
+            mReplaying.set(false);
+            finish();
+            return;
+        }
+        int chunkSize = mChunkSize;
+        int replayed = 0;
+        OptimizelyKit.OptimizelyEvent event;
+        while (replayed < chunkSize && (event = queue.poll()) != null) {
+            try {
+                mTarget.replay(event);
+            } catch (Exception ex) {
+                Logger.warning("Unable to replay Optimizely event: " + ex.getMessage());
+            }
+            replayed++;
+        }
+        long total = mReplayed.addAndGet(replayed);
+        if (replayed == chunkSize && !queue.isEmpty()) {
+            if (EventTrace.isDebugLogging()) {
+                Logger.debug(String.format("Replayed %d queued Optimizely events, %d remaining", total, queue.size()));
+            }
+            schedule(mYieldMillis);
+            return;
+        }
+        //Stop queueing new events, then check for any that were queued after the last poll. A
+        //producer that still saw mReplaying set has already offered its event, so it will be seen here
+        mReplaying.set(false);
+        if (!queue.isEmpty() && mReplaying.compareAndSet(false, true)) {
+            schedule(0);
+            return;
+        }
+        long durationNanos;
+        synchronized (mIdleLock) {
+            durationNanos = System.nanoTime() - mStartNanos;
+        }
+        mTarget.onReplayFinished(total, durationNanos);
+        finish();
+        //start() may have been called between the checks above and finish(), and found a replay
+        //still scheduled
+        if (mReplaying.get() && mScheduled.compareAndSet(false, true)) {
+            begin();
+        }
+    }
+
+    private void finish() {
+        synchronized (mIdleLock) {
+            mScheduled.set(false);
+            mIdleLock.notifyAll();
+        }
+    }
+}
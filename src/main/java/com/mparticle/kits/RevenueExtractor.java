@@ -0,0 +1,218 @@
+package com.mparticle.kits;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns the expanded "plus one" event of a CommerceEvent into an Optimizely revenue value.
+ *
+ * Totals are parsed straight into integer cents, so that amounts like "19.99" come out as exactly
+ * 1999, rather than going through a double (19.99 * 100 = 1998.9999...) and being truncated.
+ */
+class RevenueExtractor {
+    /**
+     * Returned by {@link #parseCents(String)} when the total isn't a number
+     */
+    static final long INVALID = Long.MIN_VALUE;
+
+    //the largest mantissa we can add another digit to without overflowing
+    private static final long MAX_MANTISSA = (Long.MAX_VALUE - 9) / 10;
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    //there are only a handful of product actions, so this never grows past a few entries
+    private static final ConcurrentHashMap<String, String> sPlusOneNames = new ConcurrentHashMap<>();
+
+    private RevenueExtractor() {
+    }
+
+    /**
+     * @return the name CommerceEventUtils gives the expanded "plus one" event for this product action,
+     * or null if there is no product action
+     */
+    static String plusOneName(String productAction) {
+        if (productAction == null) {
+            return null;
+        }
+        String name = sPlusOneNames.get(productAction);
+        if (name == null) {
+            name = String.format(CommerceEventUtils.PLUSONE_NAME, productAction);
+            sPlusOneNames.putIfAbsent(productAction, name);
+        }
+        return name;
+    }
+
+    /**
+     * Parses a total amount into cents, rounding half up past the second decimal place.
+     *
+     * Accepts what Double.toString() produces (including exponents, e.g. "1.0E7"), as well as
+     * locale formatted totals such as "1,234.56", "1.234,56" or "1 234,56". When both '.' and ','
+     * appear, the last one is the decimal separator. A lone ',' followed by exactly three digits is
+     * read as a grouping separator, any other lone ',' or '.' as the decimal separator.
+     *
+     * @return the amount in cents, or {@link #INVALID}
+     */
+    static long parseCents(String total) {
+        if (total == null) {
+            return INVALID;
+        }
+        int start = 0;
+        int end = total.length();
+        while (start < end && isSpace(total.charAt(start))) {
+            start++;
+        }
+        while (end > start && isSpace(total.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return INVALID;
+        }
+        boolean negative = false;
+        char first = total.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+        }
+        char decimalSeparator = decimalSeparator(total, start, end);
+        if (decimalSeparator == 0 && (total.indexOf('.', start) >= 0 && total.indexOf(',', start) >= 0)) {
+            return INVALID;
+        }
+
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        //digits since the last grouping separator, groups are 3 digits (2 in some locales, e.g. "1,23,456")
+        int groupDigits = -1;
+        boolean fraction = false;
+        int i = start;
+        for (; i < end; i++) {
+            char c = total.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (!fraction && groupDigits >= 0) {
+                    groupDigits++;
+                }
+                if (mantissa <= MAX_MANTISSA) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction) {
+                        scale++;
+                    }
+                } else if (!fraction) {
+                    return INVALID;
+                }
+                //fraction digits past what a long can hold can't change the cents
+            } else if (c == decimalSeparator) {
+                if (fraction || (groupDigits >= 0 && groupDigits < 2)) {
+                    return INVALID;
+                }
+                fraction = true;
+            } else if (c == 'e' || c == 'E') {
+                break;
+            } else if (fraction || !isGroupingSeparator(c) || digits == 0 || (groupDigits >= 0 && groupDigits < 2)) {
+                return INVALID;
+            } else {
+                groupDigits = 0;
+            }
+        }
+        if (digits == 0 || (!fraction && groupDigits >= 0 && groupDigits < 2)) {
+            return INVALID;
+        }
+        int exponent = 0;
+        if (i < end) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (total.charAt(i) == '-' || total.charAt(i) == '+')) {
+                negativeExponent = total.charAt(i) == '-';
+                i++;
+            }
+            if (i == end) {
+                return INVALID;
+            }
+            for (; i < end; i++) {
+                char c = total.charAt(i);
+                if (c < '0' || c > '9') {
+                    return INVALID;
+                }
+                if (exponent < 1000) {
+                    exponent = exponent * 10 + (c - '0');
+                }
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+
+        long cents;
+        int shift = exponent - scale + 2;
+        if (mantissa == 0) {
+            cents = 0;
+        } else if (shift >= 0) {
+            if (shift >= POWERS_OF_TEN.length || mantissa > Long.MAX_VALUE / POWERS_OF_TEN[shift]) {
+                return INVALID;
+            }
+            cents = mantissa * POWERS_OF_TEN[shift];
+        } else if (-shift >= POWERS_OF_TEN.length) {
+            cents = 0;
+        } else {
+            long divisor = POWERS_OF_TEN[-shift];
+            cents = mantissa / divisor;
+            if (mantissa % divisor >= (divisor + 1) / 2) {
+                cents++;
+            }
+        }
+        return negative ? -cents : cents;
+    }
+
+    /**
+     * @return the decimal separator of the number in total[start, end), or 0 if it doesn't have one
+     */
+    private static char decimalSeparator(String total, int start, int end) {
+        int lastDot = -1;
+        int lastComma = -1;
+        int dots = 0;
+        int commas = 0;
+        for (int i = start; i < end; i++) {
+            char c = total.charAt(i);
+            if (c == '.') {
+                lastDot = i;
+                dots++;
+            } else if (c == ',') {
+                lastComma = i;
+                commas++;
+            } else if (c == 'e' || c == 'E') {
+                break;
+            }
+        }
+        if (dots > 0 && commas > 0) {
+            if (lastDot > lastComma) {
+                return dots == 1 ? '.' : 0;
+            }
+            return commas == 1 ? ',' : 0;
+        }
+        if (dots == 1) {
+            return '.';
+        }
+        if (commas == 1) {
+            int digitsAfter = 0;
+            for (int i = lastComma + 1; i < end && total.charAt(i) >= '0' && total.charAt(i) <= '9'; i++) {
+                digitsAfter++;
+            }
+            return digitsAfter == 3 && lastComma + 4 == end ? 0 : ',';
+        }
+        return 0;
+    }
+
+    private static boolean isGroupingSeparator(char c) {
+        return c == ',' || c == '.' || c == '\'' || isSpace(c);
+    }
+
+    private static boolean isSpace(char c) {
+        //plain, no-break and narrow no-break spaces, as used for grouping by several locales
+        return c == ' ' || c == '\u00A0' || c == '\u202F' || c == '\t';
+    }
+}
@@ -0,0 +1,102 @@
+package com.mparticle.kits;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable user attribute snapshots, cached per MPID. A snapshot is loaded from
+ * MParticleUser.getUserAttributes() the first time it is needed, and is then kept current by
+ * applying the kit's attribute callbacks, so every OptimizelyEvent for a user shares one map.
+ */
+class UserAttributeCache {
+    static final Snapshot EMPTY = new Snapshot(0, 0, Collections.<String, String>emptyMap());
+
+    private final ConcurrentHashMap<Long, Snapshot> mSnapshots = new ConcurrentHashMap<>();
+    private final AtomicLong mVersion = new AtomicLong();
+
+    static class Snapshot {
+        final long mpid;
+        final long version;
+        final Map<String, String> attributes;
+
+        private Snapshot(long mpid, long version, Map<String, String> attributes) {
+            this.mpid = mpid;
+            this.version = version;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * @return the cached snapshot, or null if the user's attributes have not been loaded
+     */
+    Snapshot get(long mpid) {
+        return mSnapshots.get(mpid);
+    }
+
+    /**
+     * The current version. Pass it to {@link #load(long, Map, long)} when the fetch completes, so
+     * a fetch that raced with an attribute change does not overwrite the newer value
+     */
+    long version() {
+        return mVersion.get();
+    }
+
+    /**
+     * Build a snapshot from freshly fetched attributes, and cache it if nothing changed since
+     * the fetch began
+     */
+    synchronized Snapshot load(long mpid, Map<String, String> attributes, long fetchedAtVersion) {
+        boolean unchanged = fetchedAtVersion == mVersion.get();
+        Snapshot snapshot = create(mpid, attributes == null ? null : new HashMap<>(attributes));
+        if (unchanged) {
+            mSnapshots.put(mpid, snapshot);
+        }
+        return snapshot;
+    }
+
+    synchronized void put(long mpid, String key, String value) {
+        Snapshot current = mSnapshots.get(mpid);
+        if (current == null) {
+            mVersion.incrementAndGet();
+            return;
+        }
+        Map<String, String> attributes = new HashMap<>(current.attributes);
+        attributes.put(key, value);
+        mSnapshots.put(mpid, create(mpid, attributes));
+    }
+
+    synchronized void remove(long mpid, String key) {
+        Snapshot current = mSnapshots.get(mpid);
+        if (current == null || !current.attributes.containsKey(key)) {
+            mVersion.incrementAndGet();
+            return;
+        }
+        Map<String, String> attributes = new HashMap<>(current.attributes);
+        attributes.remove(key);
+        mSnapshots.put(mpid, create(mpid, attributes));
+    }
+
+    synchronized void replace(long mpid, Map<String, String> attributes) {
+        mSnapshots.put(mpid, create(mpid, attributes == null ? null : new HashMap<>(attributes)));
+    }
+
+    synchronized void invalidate(long mpid) {
+        mVersion.incrementAndGet();
+        mSnapshots.remove(mpid);
+    }
+
+    synchronized void clear() {
+        mVersion.incrementAndGet();
+        mSnapshots.clear();
+    }
+
+    private Snapshot create(long mpid, Map<String, String> attributes) {
+        Map<String, String> immutable = attributes == null || attributes.isEmpty()
+                ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(attributes);
+        return new Snapshot(mpid, mVersion.incrementAndGet(), immutable);
+    }
+}
@@ -0,0 +1,81 @@
+package com.mparticle.kits;
+
+import com.mparticle.MParticle;
+import com.mparticle.identity.MParticleUser;
+
+import java.util.Map;
+
+/**
+ * Resolves the Optimizely userId for an MParticleUser. The "userIdField" setting is compiled into
+ * one of these once, instead of being looked up and compared on every event.
+ */
+abstract class UserIdResolver {
+
+    /**
+     * @return the userId, or null if the user doesn't have the configured identity
+     */
+    abstract String resolve(MParticleUser user);
+
+    static UserIdResolver compile(String userIdField) {
+        if (OptimizelyKit.USER_ID_CUSTOMER_ID_VALUE.equalsIgnoreCase(userIdField)) {
+            return new IdentityResolver(MParticle.IdentityType.CustomerId);
+        } else if (OptimizelyKit.USER_ID_EMAIL_VALUE.equalsIgnoreCase(userIdField)) {
+            return new IdentityResolver(MParticle.IdentityType.Email);
+        } else if (OptimizelyKit.USER_ID_OTHER_VALUE.equalsIgnoreCase(userIdField)) {
+            return new IdentityResolver(MParticle.IdentityType.Other);
+        } else if (OptimizelyKit.USER_ID_OTHER2_VALUE.equalsIgnoreCase(userIdField)) {
+            return new IdentityResolver(MParticle.IdentityType.Other2);
+        } else if (OptimizelyKit.USER_ID_OTHER3_VALUE.equalsIgnoreCase(userIdField)) {
+            return new IdentityResolver(MParticle.IdentityType.Other3);
+        } else if (OptimizelyKit.USER_ID_OTHER4_VALUE.equalsIgnoreCase(userIdField)) {
+            return new IdentityResolver(MParticle.IdentityType.Other4);
+        } else if (OptimizelyKit.USER_ID_MPID_VALUE.equalsIgnoreCase(userIdField)) {
+            return MPID;
+        } else if (OptimizelyKit.USER_ID_DAS_VALUE.equalsIgnoreCase(userIdField)) {
+            return DAS;
+        }
+        return NONE;
+    }
+
+    static String getDeviceApplicationStamp() {
+        return MParticle.getInstance().Identity().getDeviceApplicationStamp();
+    }
+
+    static final UserIdResolver MPID = new UserIdResolver() {
+        @Override
+        String resolve(MParticleUser user) {
+            return user == null ? null : Long.toString(user.getId());
+        }
+    };
+
+    static final UserIdResolver DAS = new UserIdResolver() {
+        @Override
+        String resolve(MParticleUser user) {
+            return user == null ? null : getDeviceApplicationStamp();
+        }
+    };
+
+    static final UserIdResolver NONE = new UserIdResolver() {
+        @Override
+        String resolve(MParticleUser user) {
+            return null;
+        }
+    };
+
+    private static class IdentityResolver extends UserIdResolver {
+        private final MParticle.IdentityType mIdentityType;
+
+        IdentityResolver(MParticle.IdentityType identityType) {
+            mIdentityType = identityType;
+        }
+
+        @Override
+        String resolve(MParticleUser user) {
+            if (user == null) {
+                return null;
+            }
+            Map<MParticle.IdentityType, String> identities = user.getUserIdentities();
+            return identities == null ? null : identities.get(mIdentityType);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.mparticle.kits;
+
+import com.mparticle.MPEvent;
+import com.mparticle.MParticle;
+import com.mparticle.commerce.CommerceEvent;
+import com.mparticle.commerce.Product;
+import com.mparticle.commerce.TransactionAttributes;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fails when the bytes allocated per event exceed the budgets in src/test/resources/allocation-budgets.properties.
+ * Operations with no budget recorded are skipped, with the measurement in the skip message.
+ * Allocation is read from the JVM's per thread counters, so the test is skipped on JVMs without them.
+ * The mParticle SDK is mocked, and its mocks allocate on every call, so budgets are only comparable
+ * between runs of this test. Configured through system properties:
+ *
+ * allocation.budgets        budgets file, defaults to src/test/resources/allocation-budgets.properties
+ * allocation.updateBudgets  record this run's measurements, plus allocation.headroom, as the new budgets
+ * allocation.headroom       headroom given to recorded budgets, defaults to 0.10
+ */
+public class AllocationBudgetTests {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 20000;
+    private static final int RUNS = 5;
+
+    private static File sBudgetsFile;
+    private static Properties sBudgets;
+    private static final Properties sMeasured = new Properties();
+
+    private OptimizelyKit kit;
+
+    @BeforeClass
+    public static void loadBudgets() throws IOException {
+        Assume.assumeTrue("The JVM doesn't report per thread allocation", allocatedBytes() >= 0);
+        sBudgetsFile = new File(System.getProperty("allocation.budgets", "src/test/resources/allocation-budgets.properties"));
+        sBudgets = new Properties();
+        InputStream in = new FileInputStream(sBudgetsFile);
+        try {
+            sBudgets.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @AfterClass
+    public static void updateBudgets() throws IOException {
+        if (sBudgetsFile == null || !Boolean.getBoolean("allocation.updateBudgets") || sMeasured.isEmpty()) {
+            return;
+        }
+        double headroom = Double.parseDouble(System.getProperty("allocation.headroom", "0.10"));
+        Properties budgets = new Properties();
+        budgets.putAll(sBudgets);
+        for (String name : sMeasured.stringPropertyNames()) {
+            long measured = Long.parseLong(sMeasured.getProperty(name));
+            budgets.setProperty(name, String.valueOf((long) Math.ceil(measured * (1 + headroom))));
+        }
+        OutputStream out = new FileOutputStream(sBudgetsFile);
+        try {
+            budgets.store(out, "Bytes allocated per event, see AllocationBudgetTests");
+        } finally {
+            out.close();
+        }
+    }
+
+    @Before
+    public void before() {
+        BenchmarkSupport.setUpMParticle(10);
+        OptimizelyKit.setOptimizelyClient(BenchmarkSupport.createClient());
+        kit = new BenchmarkSupport.BenchmarkKit(OptimizelyKit.USER_ID_MPID_VALUE) {
+            @Override
+            void trackOptimizelyEvent(OptimizelyEvent trackEvent) {
+                //measure the kit, not the mocked OptimizelyClient
+            }
+        };
+    }
+
+    @Test
+    public void testLogEvent() {
+        Map<String, String> info = new HashMap<>();
+        info.put("screen", "home");
+        info.put("position", "3");
+        final MPEvent event = new MPEvent.Builder("Scroll", MParticle.EventType.Navigation).info(info).build();
+        assertWithinBudget("logEvent", measure(new Runnable() {
+            @Override
+            public void run() {
+                kit.logEvent(event);
+            }
+        }));
+    }
+
+    @Test
+    public void testLogEventWithCustomFlags() {
+        final MPEvent event = new MPEvent.Builder("Checkout", MParticle.EventType.Transaction)
+                .addCustomFlag(OptimizelyKit.OPTIMIZELY_VALUE_KEY, "19.99")
+                .addCustomFlag(OptimizelyKit.OPTIMIZELY_USER_ID, "customer-1234")
+                .build();
+        assertWithinBudget("logEventWithCustomFlags", measure(new Runnable() {
+            @Override
+            public void run() {
+                kit.logEvent(event);
+            }
+        }));
+    }
+
+    /**
+     * Per expanded event, so that the budget doesn't depend on the number of products
+     */
+    @Test
+    public void testCommerceEvent() {
+        CommerceEvent.Builder builder = new CommerceEvent.Builder(Product.PURCHASE, new Product.Builder("product0", "sku0", 19.99).build())
+                .transactionAttributes(new TransactionAttributes("order-1").setRevenue(199.9));
+        for (int i = 1; i < 10; i++) {
+            builder.addProduct(new Product.Builder("product" + i, "sku" + i, 19.99).build());
+        }
+        final CommerceEvent commerceEvent = builder.build();
+        int expandedEvents = CommerceEventUtils.expand(commerceEvent).size();
+        assertWithinBudget("commerceEventPerExpandedEvent", measure(new Runnable() {
+            @Override
+            public void run() {
+                kit.logEvent(commerceEvent);
+            }
+        }) / expandedEvents);
+    }
+
+    private static void assertWithinBudget(String name, long measured) {
+        sMeasured.setProperty(name, String.valueOf(measured));
+        if (Boolean.getBoolean("allocation.updateBudgets")) {
+            //recorded by updateBudgets(), even if there is no budget yet
+            return;
+        }
+        String budget = sBudgets.getProperty(name);
+        Assume.assumeTrue("No allocation budget for " + name + " in " + sBudgetsFile + ", measured " + measured
+                + " bytes. Record budgets with -Dallocation.updateBudgets=true", budget != null);
+        assertTrue(name + " allocated " + measured + " bytes per event, over its budget of " + budget,
+                measured <= Long.parseLong(budget.trim()));
+    }
+
+    /**
+     * @return the fewest bytes allocated per call over several runs, after warming up, so that
+     * one-off allocations (JIT, caches filling, TLAB refills) don't count against the budget
+     */
+    private static long measure(Runnable operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        long fewest = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++) {
+                operation.run();
+            }
+            fewest = Math.min(fewest, (allocatedBytes() - before) / ITERATIONS);
+        }
+        return fewest;
+    }
+
+    /**
+     * @return the bytes allocated by the calling thread so far, or -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+                return allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,140 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncEventDispatcherTests {
+
+    /**
+     * Events from many producers should all be delivered, and each producer's events should arrive
+     * in the order they were submitted
+     */
+    @Test
+    public void testDeliveryAndOrdering() throws InterruptedException {
+        final List<OptimizelyKit.OptimizelyEvent> received = Collections.synchronizedList(new ArrayList<OptimizelyKit.OptimizelyEvent>());
+        final AsyncEventDispatcher dispatcher = new AsyncEventDispatcher(16, AsyncEventDispatcher.Backpressure.BLOCK, new AsyncEventDispatcher.Sink() {
+            @Override
+            public void dispatch(OptimizelyKit.OptimizelyEvent event) {
+                received.add(event);
+            }
+        });
+        final int producers = 4;
+        final int perProducer = 2000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final String userId = String.valueOf(p);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        dispatcher.submit(createEvent(String.valueOf(i), userId));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(dispatcher.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(producers * perProducer, received.size());
+        int[] next = new int[producers];
+        for (OptimizelyKit.OptimizelyEvent event : received) {
+            int producer = Integer.parseInt(event.userId);
+            assertEquals(next[producer]++, Integer.parseInt(event.eventName));
+        }
+        assertEquals(0, dispatcher.getDroppedCount());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testDropNewest() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher(2, AsyncEventDispatcher.Backpressure.DROP_NEWEST, blockingSink(release, received));
+        //the first event occupies the worker, the next two fill the buffer
+        dispatcher.submit(createEvent("0", "user"));
+        waitForWorker(dispatcher);
+        for (int i = 1; i < 6; i++) {
+            dispatcher.submit(createEvent(String.valueOf(i), "user"));
+        }
+        assertFalse(dispatcher.awaitIdle(10, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(3, dispatcher.getDroppedCount());
+        assertEquals(java.util.Arrays.asList("0", "1", "2"), received);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher(2, AsyncEventDispatcher.Backpressure.DROP_OLDEST, blockingSink(release, received));
+        dispatcher.submit(createEvent("0", "user"));
+        waitForWorker(dispatcher);
+        for (int i = 1; i < 6; i++) {
+            dispatcher.submit(createEvent(String.valueOf(i), "user"));
+        }
+        release.countDown();
+        assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(3, dispatcher.getDroppedCount());
+        assertEquals(java.util.Arrays.asList("0", "4", "5"), received);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testClear() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher(4, AsyncEventDispatcher.Backpressure.BLOCK, blockingSink(release, received));
+        dispatcher.submit(createEvent("0", "user"));
+        waitForWorker(dispatcher);
+        for (int i = 1; i < 4; i++) {
+            dispatcher.submit(createEvent(String.valueOf(i), "user"));
+        }
+        assertEquals(3, dispatcher.clear());
+        assertEquals(0, dispatcher.size());
+        release.countDown();
+        assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        dispatcher.submit(createEvent("4", "user"));
+        assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(java.util.Arrays.asList("0", "4"), received);
+        dispatcher.shutdown();
+    }
+
+    private AsyncEventDispatcher.Sink blockingSink(final CountDownLatch release, final List<String> received) {
+        return new AsyncEventDispatcher.Sink() {
+            @Override
+            public void dispatch(OptimizelyKit.OptimizelyEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+
+                }
+                received.add(event.eventName);
+            }
+        };
+    }
+
+    private void waitForWorker(AsyncEventDispatcher dispatcher) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private OptimizelyKit.OptimizelyEvent createEvent(String name, String userId) {
+        OptimizelyKit.OptimizelyEvent event = new OptimizelyKit.OptimizelyEvent();
+        event.eventName = name;
+        event.userId = userId;
+        return event;
+    }
+}
@@ -0,0 +1,116 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.config.Attribute;
+import com.optimizely.ab.config.ProjectConfig;
+import com.optimizely.ab.config.audience.AndCondition;
+import com.optimizely.ab.config.audience.Audience;
+import com.optimizely.ab.config.audience.Condition;
+import com.optimizely.ab.config.audience.UserAttribute;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AttributeProjectionTests {
+
+    @Test
+    public void testNoProjectConfig() {
+        assertNull(AttributeProjection.build(null));
+    }
+
+    /**
+     * Only declared attributes should be kept, with values converted to the types the audiences
+     * compare them against
+     */
+    @Test
+    public void testProjection() {
+        ProjectConfig projectConfig = createProjectConfig(Arrays.asList("age", "premium", "plan", "score"),
+                Arrays.asList(createCondition("age", 21), createCondition("premium", true), createCondition("plan", "gold"),
+                        createCondition("score", 1.5), createCondition("score", "high")));
+        AttributeProjection projection = AttributeProjection.build(projectConfig);
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("age", "34");
+        attributes.put("premium", "TRUE");
+        attributes.put("plan", "gold");
+        attributes.put("score", "2.5");
+        attributes.put("undeclared", "value");
+        attributes.put("$opt_bucketing_id", "bucket");
+
+        Map<String, ?> projected = projection.project(attributes);
+        assertEquals(5, projected.size());
+        assertEquals(34L, projected.get("age"));
+        assertEquals(Boolean.TRUE, projected.get("premium"));
+        assertEquals("gold", projected.get("plan"));
+        //compared as both a number and a string, so left alone
+        assertEquals("2.5", projected.get("score"));
+        assertEquals("bucket", projected.get("$opt_bucketing_id"));
+        assertFalse(projected.containsKey("undeclared"));
+    }
+
+    @Test
+    public void testCoerce() {
+        assertEquals(10L, AttributeProjection.coerce(AttributeProjection.Type.NUMBER, "10"));
+        assertEquals(10.25, AttributeProjection.coerce(AttributeProjection.Type.NUMBER, "10.25"));
+        assertEquals("ten", AttributeProjection.coerce(AttributeProjection.Type.NUMBER, "ten"));
+        assertEquals("NaN", AttributeProjection.coerce(AttributeProjection.Type.NUMBER, "NaN"));
+        assertEquals(Boolean.FALSE, AttributeProjection.coerce(AttributeProjection.Type.BOOLEAN, "false"));
+        assertEquals("yes", AttributeProjection.coerce(AttributeProjection.Type.BOOLEAN, "yes"));
+        assertEquals("10", AttributeProjection.coerce(AttributeProjection.Type.STRING, "10"));
+    }
+
+    /**
+     * A snapshot should only be projected once
+     */
+    @Test
+    public void testSnapshotCached() {
+        AttributeProjection projection = AttributeProjection.build(createProjectConfig(Collections.singletonList("age"),
+                Collections.singletonList(createCondition("age", 21))));
+        UserAttributeCache cache = new UserAttributeCache();
+        UserAttributeCache.Snapshot snapshot = cache.load(1L, Collections.singletonMap("age", "30"), cache.version());
+
+        Map<String, ?> projected = projection.project(snapshot);
+        assertTrue(projected == projection.project(snapshot));
+        assertEquals(30L, projected.get("age"));
+
+        cache.put(1L, "age", "31");
+        Map<String, ?> updated = projection.project(cache.get(1L));
+        assertEquals(31L, updated.get("age"));
+    }
+
+    private ProjectConfig createProjectConfig(List<String> attributeKeys, List<Condition> conditions) {
+        List<Attribute> attributes = new ArrayList<>();
+        for (String key : attributeKeys) {
+            Attribute attribute = Mockito.mock(Attribute.class);
+            Mockito.when(attribute.getKey()).thenReturn(key);
+            attributes.add(attribute);
+        }
+        AndCondition andCondition = Mockito.mock(AndCondition.class);
+        Mockito.when(andCondition.getConditions()).thenReturn(conditions);
+        Audience audience = Mockito.mock(Audience.class);
+        Mockito.when(audience.getConditions()).thenReturn(andCondition);
+
+        ProjectConfig projectConfig = Mockito.mock(ProjectConfig.class);
+        Mockito.when(projectConfig.getAttributes()).thenReturn(attributes);
+        Mockito.when(projectConfig.getTypedAudiences()).thenReturn(Collections.singletonList(audience));
+        return projectConfig;
+    }
+
+    private Condition createCondition(String name, Object value) {
+        UserAttribute condition = Mockito.mock(UserAttribute.class);
+        Mockito.when(condition.getName()).thenReturn(name);
+        Mockito.when(condition.getValue()).thenReturn(value);
+        return condition;
+    }
+}
@@ -0,0 +1,72 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackgroundInitializerTests {
+
+    @Test
+    public void testRunsOnce() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        BackgroundInitializer initializer = new BackgroundInitializer("test-init");
+        initializer.start(new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                done.countDown();
+            }
+        }, false);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("test-init", threadName.get());
+        assertFalse(initializer.isPending());
+        initializer.shutdown();
+    }
+
+    /**
+     * An initialization held before it starts, e.g. while opted out, should run when resumed
+     */
+    @Test
+    public void testHeldUntilResumed() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        BackgroundInitializer initializer = new BackgroundInitializer("test-init");
+        initializer.start(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                done.countDown();
+            }
+        }, true);
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(initializer.isPending());
+
+        initializer.resume();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        initializer.resume();
+        initializer.shutdown();
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testShutdownDropsPending() {
+        BackgroundInitializer initializer = new BackgroundInitializer("test-init");
+        initializer.start(new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("ran after shutdown");
+            }
+        }, true);
+        initializer.shutdown();
+        initializer.resume();
+        assertFalse(initializer.isPending());
+    }
+}
@@ -0,0 +1,172 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientRegistryTests {
+
+    @Test
+    public void testListenersFireOnceInOrder() {
+        ClientRegistry registry = new ClientRegistry();
+        final List<Integer> fired = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int index = i;
+            registry.register(new OptimizelyKit.OptimizelyClientListener() {
+                @Override
+                public void onOptimizelyClientAvailable(OptimizelyClient optimizelyClient) {
+                    fired.add(index);
+                }
+            }, null);
+        }
+        assertTrue(fired.isEmpty());
+        assertNull(registry.current());
+
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class);
+        registry.publish(client);
+        registry.publish(client);
+        assertEquals(3, fired.size());
+        assertEquals(Integer.valueOf(0), fired.get(0));
+        assertEquals(Integer.valueOf(2), fired.get(2));
+        assertSame(client, registry.current());
+
+        //once published, new listeners fire immediately
+        registry.register(new OptimizelyKit.OptimizelyClientListener() {
+            @Override
+            public void onOptimizelyClientAvailable(OptimizelyClient optimizelyClient) {
+                fired.add(3);
+            }
+        }, null);
+        assertEquals(4, fired.size());
+
+        registry.reset();
+        assertNull(registry.current());
+    }
+
+    /**
+     * Polling with short timeouts, before the client is available, should not register a waiter per call
+     */
+    @Test
+    public void testAwaitSharesPendingFuture() throws Exception {
+        ClientRegistry registry = new ClientRegistry();
+        Future<OptimizelyClient> first = registry.await();
+        for (int i = 0; i < 100; i++) {
+            try {
+                registry.await().get(0, TimeUnit.MILLISECONDS);
+                fail();
+            } catch (TimeoutException expected) {
+
+            }
+        }
+        assertSame(first, registry.await());
+
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class);
+        registry.publish(client);
+        assertTrue(first.isDone());
+        assertSame(client, first.get());
+        assertSame(client, registry.await().get(0, TimeUnit.MILLISECONDS));
+
+        //waiting again for the next client
+        registry.reset();
+        Future<OptimizelyClient> next = registry.await();
+        assertFalse(next.isDone());
+        assertSame(next, registry.await());
+    }
+
+    /**
+     * Registering races with publishing, but every listener should fire exactly once
+     */
+    @Test
+    public void testConcurrentRegisterAndPublish() throws InterruptedException {
+        final ClientRegistry registry = new ClientRegistry();
+        final AtomicInteger fired = new AtomicInteger();
+        final OptimizelyKit.OptimizelyClientListener listener = new OptimizelyKit.OptimizelyClientListener() {
+            @Override
+            public void onOptimizelyClientAvailable(OptimizelyClient optimizelyClient) {
+                fired.incrementAndGet();
+            }
+        };
+        final int threads = 4;
+        final int perThread = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        registry.register(listener, null);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        registry.publish(Mockito.mock(OptimizelyClient.class));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * perThread, fired.get());
+    }
+
+    @Test
+    public void testListenerRunsOnExecutor() {
+        ClientRegistry registry = new ClientRegistry();
+        final List<Runnable> deferred = Collections.synchronizedList(new ArrayList<Runnable>());
+        final AtomicInteger fired = new AtomicInteger();
+        registry.register(new OptimizelyKit.OptimizelyClientListener() {
+            @Override
+            public void onOptimizelyClientAvailable(OptimizelyClient optimizelyClient) {
+                fired.incrementAndGet();
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                deferred.add(command);
+            }
+        });
+        registry.publish(Mockito.mock(OptimizelyClient.class));
+        assertEquals(0, fired.get());
+        assertEquals(1, deferred.size());
+        deferred.get(0).run();
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void testAwait() throws Exception {
+        ClientRegistry registry = new ClientRegistry();
+        Future<OptimizelyClient> future = registry.await();
+        assertFalse(future.isDone());
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("expected a timeout");
+        } catch (TimeoutException expected) {
+        }
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class);
+        registry.publish(client);
+        assertTrue(future.isDone());
+        assertSame(client, future.get());
+        assertSame(client, registry.await().get(0, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,51 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingRefresherTests {
+
+    @Test
+    public void testRequestsCoalesced() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger latest = new AtomicInteger();
+        final AtomicInteger seen = new AtomicInteger();
+        CoalescingRefresher refresher = new CoalescingRefresher("test-refresher", new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+
+                }
+                seen.set(latest.get());
+            }
+        });
+        refresher.request();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        //a burst of changes while the first refresh is running
+        for (int i = 1; i <= 10; i++) {
+            latest.set(i);
+            refresher.request();
+        }
+        release.countDown();
+        assertTrue(refresher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(2, runs.get());
+        assertEquals(10, seen.get());
+
+        refresher.request();
+        assertTrue(refresher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(3, runs.get());
+        refresher.shutdown();
+    }
+}
@@ -0,0 +1,220 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.config.Attribute;
+import com.optimizely.ab.config.EventType;
+import com.optimizely.ab.config.Experiment;
+import com.optimizely.ab.config.FeatureFlag;
+import com.optimizely.ab.config.Group;
+import com.optimizely.ab.config.ProjectConfig;
+import com.optimizely.ab.config.TrafficAllocation;
+import com.optimizely.ab.config.Variation;
+import com.optimizely.ab.config.audience.Condition;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DatafileDiffTests {
+
+    @Test
+    public void testChangedKeys() {
+        Experiment checkout = createExperiment("1", "checkout_test", "Running");
+        Experiment search = createExperiment("2", "search_test", "Running");
+        ProjectConfig previous = createProjectConfig("1",
+                Arrays.asList(checkout, search),
+                Arrays.asList(createFeatureFlag("10", "checkout", "1"), createFeatureFlag("11", "search", "2")),
+                Arrays.asList(createEventType("20", "Purchase"), createEventType("21", "Search")),
+                Arrays.asList(createAttribute("30", "plan"), createAttribute("31", "country")));
+        //the search test is paused, the Search event is removed and an attribute is added
+        ProjectConfig current = createProjectConfig("2",
+                Arrays.asList(checkout, createExperiment("2", "search_test", "Paused")),
+                Arrays.asList(createFeatureFlag("10", "checkout", "1"), createFeatureFlag("11", "search", "2")),
+                Collections.singletonList(createEventType("20", "Purchase")),
+                Arrays.asList(createAttribute("30", "plan"), createAttribute("31", "country"), createAttribute("32", "tier")));
+
+        DatafileDiff diff = DatafileDiff.between(index(previous), index(current));
+        assertFalse(diff.isFull());
+        assertFalse(diff.isEmpty());
+        assertEquals("1", diff.previousRevision);
+        assertEquals("2", diff.revision);
+        assertEquals(Collections.singleton("search_test"), diff.experimentKeys);
+        //the feature's test changed
+        assertEquals(Collections.singleton("search"), diff.featureKeys);
+        assertEquals(Collections.singleton("Search"), diff.eventKeys);
+        assertEquals(Collections.singleton("tier"), diff.attributeKeys);
+    }
+
+    @Test
+    public void testGroupChanged() {
+        Experiment checkout = createExperiment("1", "checkout_test", "Running");
+        Experiment search = createExperiment("2", "search_test", "Running");
+        Experiment onboarding = createExperiment("3", "onboarding_test", "Running");
+        Mockito.when(checkout.getGroupId()).thenReturn("100");
+        Mockito.when(search.getGroupId()).thenReturn("100");
+        List<Experiment> experiments = Arrays.asList(checkout, search, onboarding);
+        ProjectConfig previous = createProjectConfig("1", experiments,
+                Collections.<FeatureFlag>emptyList(), Collections.<EventType>emptyList(), Collections.<Attribute>emptyList());
+        Group group = createGroup("100", Arrays.asList(checkout, search), createTrafficAllocation("1", 5000), createTrafficAllocation("2", 10000));
+        Mockito.when(previous.getGroups()).thenReturn(Collections.singletonList(group));
+        //only the group's traffic allocation changes, which moves users between its experiments
+        ProjectConfig current = createProjectConfig("2", experiments,
+                Collections.<FeatureFlag>emptyList(), Collections.<EventType>emptyList(), Collections.<Attribute>emptyList());
+        group = createGroup("100", Arrays.asList(checkout, search), createTrafficAllocation("1", 2000), createTrafficAllocation("2", 10000));
+        Mockito.when(current.getGroups()).thenReturn(Collections.singletonList(group));
+
+        DatafileDiff diff = DatafileDiff.between(index(previous), index(current));
+        assertEquals(new HashSet<>(Arrays.asList("checkout_test", "search_test")), diff.experimentKeys);
+    }
+
+    @Test
+    public void testAudienceConditionsChanged() {
+        Experiment checkout = createExperiment("1", "checkout_test", "Running");
+        Mockito.when(checkout.getAudienceIds()).thenReturn(Arrays.asList("40", "41"));
+        Condition or = createCondition("[\"or\", \"40\", \"41\"]");
+        Mockito.when(checkout.getAudienceConditions()).thenReturn(or);
+        Experiment search = createExperiment("2", "search_test", "Running");
+        ProjectConfig previous = createProjectConfig("1", Arrays.asList(checkout, search),
+                Collections.<FeatureFlag>emptyList(), Collections.<EventType>emptyList(), Collections.<Attribute>emptyList());
+        //the same audiences, but the user has to be in both
+        checkout = createExperiment("1", "checkout_test", "Running");
+        Mockito.when(checkout.getAudienceIds()).thenReturn(Arrays.asList("40", "41"));
+        Condition and = createCondition("[\"and\", \"40\", \"41\"]");
+        Mockito.when(checkout.getAudienceConditions()).thenReturn(and);
+        ProjectConfig current = createProjectConfig("2", Arrays.asList(checkout, search),
+                Collections.<FeatureFlag>emptyList(), Collections.<EventType>emptyList(), Collections.<Attribute>emptyList());
+
+        DatafileDiff diff = DatafileDiff.between(index(previous), index(current));
+        assertEquals(Collections.singleton("checkout_test"), diff.experimentKeys);
+    }
+
+    @Test
+    public void testSameRevision() {
+        ProjectConfig previous = createProjectConfig("1", Collections.singletonList(createExperiment("1", "checkout_test", "Running")),
+                Collections.<FeatureFlag>emptyList(), Collections.<EventType>emptyList(), Collections.<Attribute>emptyList());
+        ProjectConfig current = createProjectConfig("1", Collections.<Experiment>emptyList(),
+                Collections.<FeatureFlag>emptyList(), Collections.<EventType>emptyList(), Collections.<Attribute>emptyList());
+        assertSame(DatafileDiff.NONE, DatafileDiff.between(index(previous), index(current)));
+        assertTrue(DatafileDiff.NONE.isEmpty());
+    }
+
+    @Test
+    public void testFull() {
+        ProjectConfig current = createProjectConfig("1", Collections.<Experiment>emptyList(),
+                Collections.<FeatureFlag>emptyList(), Collections.<EventType>emptyList(), Collections.<Attribute>emptyList());
+        DatafileDiff diff = DatafileDiff.between(null, index(current));
+        assertTrue(diff.isFull());
+        assertFalse(diff.isEmpty());
+        assertTrue(DatafileDiff.between(index(current), null).isFull());
+    }
+
+    @Test
+    public void testTrackerPublishesDiff() {
+        final List<DatafileDiff> diffs = new java.util.ArrayList<>();
+        ProjectConfigTracker tracker = new ProjectConfigTracker();
+        tracker.addListener(new ProjectConfigTracker.Listener() {
+            @Override
+            public void onProjectConfigChanged(ProjectConfig previous, ProjectConfig current, DatafileDiff diff) {
+                diffs.add(diff);
+            }
+        });
+        ProjectConfig first = createProjectConfig("1", Collections.<Experiment>emptyList(),
+                Collections.<FeatureFlag>emptyList(), Collections.<EventType>emptyList(), Collections.<Attribute>emptyList());
+        ProjectConfig second = createProjectConfig("2", Collections.<Experiment>emptyList(),
+                Collections.<FeatureFlag>emptyList(), Collections.singletonList(createEventType("20", "Purchase")), Collections.<Attribute>emptyList());
+        com.optimizely.ab.android.sdk.OptimizelyClient client = Mockito.mock(com.optimizely.ab.android.sdk.OptimizelyClient.class);
+        Mockito.when(client.isValid()).thenReturn(true);
+        Mockito.when(client.getProjectConfig()).thenReturn(first, second);
+        tracker.update(client);
+        tracker.update(client);
+        assertEquals(2, diffs.size());
+        assertTrue(diffs.get(0).isFull());
+        assertEquals(Collections.singleton("Purchase"), diffs.get(1).eventKeys);
+        assertTrue(diffs.get(1).experimentKeys.isEmpty());
+        //the projection the datafile was indexed with, for listeners to reuse
+        assertTrue(diffs.get(1).attributeProjection != null);
+        tracker.reset();
+        assertTrue(diffs.get(2).isFull());
+        assertNull(diffs.get(2).attributeProjection);
+    }
+
+    private DatafileDiff.Index index(ProjectConfig projectConfig) {
+        return DatafileDiff.Index.build(projectConfig, AttributeProjection.build(projectConfig));
+    }
+
+    private ProjectConfig createProjectConfig(String revision, List<Experiment> experiments, List<FeatureFlag> featureFlags,
+                                              List<EventType> eventTypes, List<Attribute> attributes) {
+        ProjectConfig projectConfig = Mockito.mock(ProjectConfig.class);
+        Mockito.when(projectConfig.getRevision()).thenReturn(revision);
+        Mockito.when(projectConfig.getExperiments()).thenReturn(experiments);
+        Mockito.when(projectConfig.getFeatureFlags()).thenReturn(featureFlags);
+        Mockito.when(projectConfig.getEventTypes()).thenReturn(eventTypes);
+        Mockito.when(projectConfig.getAttributes()).thenReturn(attributes);
+        return projectConfig;
+    }
+
+    private Experiment createExperiment(String id, String key, String status) {
+        Variation variation = Mockito.mock(Variation.class);
+        Mockito.when(variation.getId()).thenReturn(id + "0");
+        Mockito.when(variation.getKey()).thenReturn("control");
+        Experiment experiment = Mockito.mock(Experiment.class);
+        Mockito.when(experiment.getId()).thenReturn(id);
+        Mockito.when(experiment.getKey()).thenReturn(key);
+        Mockito.when(experiment.getStatus()).thenReturn(status);
+        Mockito.when(experiment.getVariations()).thenReturn(Collections.singletonList(variation));
+        return experiment;
+    }
+
+    private Group createGroup(String id, List<Experiment> experiments, TrafficAllocation... trafficAllocation) {
+        Group group = Mockito.mock(Group.class);
+        Mockito.when(group.getId()).thenReturn(id);
+        Mockito.when(group.getPolicy()).thenReturn(Group.RANDOM_POLICY);
+        Mockito.when(group.getExperiments()).thenReturn(experiments);
+        Mockito.when(group.getTrafficAllocation()).thenReturn(Arrays.asList(trafficAllocation));
+        return group;
+    }
+
+    private TrafficAllocation createTrafficAllocation(String entityId, int endOfRange) {
+        TrafficAllocation trafficAllocation = Mockito.mock(TrafficAllocation.class);
+        Mockito.when(trafficAllocation.getEntityId()).thenReturn(entityId);
+        Mockito.when(trafficAllocation.getEndOfRange()).thenReturn(endOfRange);
+        return trafficAllocation;
+    }
+
+    private Condition createCondition(String json) {
+        Condition condition = Mockito.mock(Condition.class);
+        Mockito.when(condition.toString()).thenReturn(json);
+        return condition;
+    }
+
+    private FeatureFlag createFeatureFlag(String id, String key, String experimentId) {
+        FeatureFlag featureFlag = Mockito.mock(FeatureFlag.class);
+        Mockito.when(featureFlag.getId()).thenReturn(id);
+        Mockito.when(featureFlag.getKey()).thenReturn(key);
+        Mockito.when(featureFlag.getExperimentIds()).thenReturn(Collections.singletonList(experimentId));
+        return featureFlag;
+    }
+
+    private EventType createEventType(String id, String key) {
+        EventType eventType = Mockito.mock(EventType.class);
+        Mockito.when(eventType.getId()).thenReturn(id);
+        Mockito.when(eventType.getKey()).thenReturn(key);
+        return eventType;
+    }
+
+    private Attribute createAttribute(String id, String key) {
+        Attribute attribute = Mockito.mock(Attribute.class);
+        Mockito.when(attribute.getId()).thenReturn(id);
+        Mockito.when(attribute.getKey()).thenReturn(key);
+        return attribute;
+    }
+}
@@ -0,0 +1,91 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+import com.optimizely.ab.config.Variation;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class DecisionCacheTests {
+    private final Map<String, String> attributes = Collections.singletonMap("plan", "pro");
+
+    @Test
+    public void testDecisionsCachedPerAttributeVersion() {
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class);
+        Variation variation = Mockito.mock(Variation.class);
+        Mockito.when(client.getVariation(Mockito.eq("experiment"), Mockito.eq("user"), Mockito.any(Map.class))).thenReturn(variation);
+
+        DecisionCache decisions = new DecisionCache();
+        for (int i = 0; i < 5; i++) {
+            assertSame(variation, decisions.get(client, "experiment", "user", 1, attributes, false));
+        }
+        verify(client, times(1)).getVariation(Mockito.eq("experiment"), Mockito.eq("user"), Mockito.any(Map.class));
+
+        //new attributes, new decision
+        assertSame(variation, decisions.get(client, "experiment", "user", 2, attributes, false));
+        verify(client, times(2)).getVariation(Mockito.eq("experiment"), Mockito.eq("user"), Mockito.any(Map.class));
+
+        decisions.clear();
+        assertSame(variation, decisions.get(client, "experiment", "user", 2, attributes, false));
+        verify(client, times(3)).getVariation(Mockito.eq("experiment"), Mockito.eq("user"), Mockito.any(Map.class));
+    }
+
+    /**
+     * An impression should be sent the first time a cached decision is activated, and not again
+     */
+    @Test
+    public void testImpressionSentOnce() {
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class);
+        Variation variation = Mockito.mock(Variation.class);
+        Mockito.when(client.getVariation(Mockito.eq("experiment"), Mockito.eq("user"), Mockito.any(Map.class))).thenReturn(variation);
+
+        DecisionCache decisions = new DecisionCache();
+        decisions.get(client, "experiment", "user", 1, attributes, false);
+        verify(client, never()).activate(Mockito.anyString(), Mockito.anyString(), Mockito.any(Map.class));
+        for (int i = 0; i < 3; i++) {
+            assertSame(variation, decisions.get(client, "experiment", "user", 1, attributes, true));
+        }
+        verify(client, times(1)).activate(Mockito.eq("experiment"), Mockito.eq("user"), Mockito.any(Map.class));
+
+        //a new decision gets its own impression
+        decisions.get(client, "experiment", "user", 2, attributes, true);
+        verify(client, times(2)).activate(Mockito.eq("experiment"), Mockito.eq("user"), Mockito.any(Map.class));
+    }
+
+    @Test
+    public void testInvalidate() {
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class);
+        DecisionCache decisions = new DecisionCache();
+        decisions.get(client, "checkout", "user1", 1, attributes, false);
+        decisions.get(client, "checkout", "user2", 1, attributes, false);
+        decisions.get(client, "search", "user1", 1, attributes, false);
+        assertEquals(3, decisions.size());
+
+        decisions.invalidate(Collections.singleton("checkout"));
+        assertEquals(1, decisions.size());
+        decisions.get(client, "search", "user1", 1, attributes, false);
+        verify(client, times(1)).getVariation(Mockito.eq("search"), Mockito.eq("user1"), Mockito.any(Map.class));
+        decisions.get(client, "checkout", "user1", 1, attributes, false);
+        verify(client, times(2)).getVariation(Mockito.eq("checkout"), Mockito.eq("user1"), Mockito.any(Map.class));
+    }
+
+    @Test
+    public void testNotBucketed() {
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class);
+        DecisionCache decisions = new DecisionCache();
+        assertNull(decisions.get(client, "experiment", "user", 1, attributes, true));
+        assertNull(decisions.get(client, "experiment", "user", 1, attributes, true));
+        verify(client, times(1)).getVariation(Mockito.eq("experiment"), Mockito.eq("user"), Mockito.any(Map.class));
+        verify(client, never()).activate(Mockito.anyString(), Mockito.anyString(), Mockito.any(Map.class));
+    }
+}
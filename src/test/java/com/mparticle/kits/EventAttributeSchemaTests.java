@@ -0,0 +1,107 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventAttributeSchemaTests {
+
+    @Test
+    public void testTypedAndRenamed() {
+        EventAttributeSchema schema = EventAttributeSchema.parse("{\"Checkout\": {\"total\": {\"type\": \"cents\", \"name\": \"revenue\"}, \"items\": \"integer\", \"gift\": \"boolean\"}, \"*\": {\"rating\": \"number\"}}");
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("total", "19.99");
+        attributes.put("items", "3");
+        attributes.put("gift", "true");
+        attributes.put("rating", "4.5");
+        attributes.put("coupon", "SPRING");
+        StripedCounter failures = new StripedCounter();
+
+        Map<String, Object> eventTags = schema.get("Checkout").convert(attributes, failures);
+        assertEquals(5, eventTags.size());
+        assertEquals(1999, eventTags.get("revenue"));
+        assertFalse(eventTags.containsKey("total"));
+        assertEquals(3, eventTags.get("items"));
+        assertEquals(Boolean.TRUE, eventTags.get("gift"));
+        assertEquals(4.5, eventTags.get("rating"));
+        assertEquals("SPRING", eventTags.get("coupon"));
+        assertEquals(0, failures.sum());
+
+        //other events only get the attributes for every event
+        eventTags = schema.get("Search").convert(attributes, failures);
+        assertEquals(4.5, eventTags.get("rating"));
+        assertEquals("19.99", eventTags.get("total"));
+        assertEquals("3", eventTags.get("items"));
+    }
+
+    /**
+     * An attribute renamed to a name the event already has should replace it, in either order
+     */
+    @Test
+    public void testRenameCollision() {
+        EventAttributeSchema schema = EventAttributeSchema.parse("{\"Checkout\": {\"total\": {\"type\": \"cents\", \"name\": \"revenue\"}}}");
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("revenue", "5");
+        attributes.put("total", "19.99");
+        StripedCounter failures = new StripedCounter();
+        Map<String, Object> eventTags = schema.get("Checkout").convert(attributes, failures);
+        assertEquals(1, eventTags.size());
+        assertEquals(1999, eventTags.get("revenue"));
+
+        attributes = new LinkedHashMap<>();
+        attributes.put("total", "19.99");
+        attributes.put("revenue", "5");
+        eventTags = schema.get("Checkout").convert(attributes, failures);
+        assertEquals(1, eventTags.size());
+        assertEquals(1999, eventTags.get("revenue"));
+
+        //the renamed attribute didn't convert, so there is nothing to replace the raw one with
+        attributes.put("total", "free");
+        eventTags = schema.get("Checkout").convert(attributes, failures);
+        assertEquals("5", eventTags.get("revenue"));
+        assertEquals("free", eventTags.get("total"));
+    }
+
+    /**
+     * Values that don't parse are counted, and forwarded as they are
+     */
+    @Test
+    public void testParseFailures() {
+        EventAttributeSchema schema = EventAttributeSchema.parse("{\"Checkout\": {\"total\": {\"type\": \"cents\", \"name\": \"revenue\"}, \"items\": \"integer\", \"gift\": \"boolean\"}}");
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("total", "free");
+        attributes.put("items", "3.5");
+        attributes.put("gift", "maybe");
+        StripedCounter failures = new StripedCounter();
+
+        Map<String, Object> eventTags = schema.get("Checkout").convert(attributes, failures);
+        assertEquals(attributes, eventTags);
+        assertEquals(3, failures.sum());
+        assertNull(schema.get("Search"));
+    }
+
+    @Test
+    public void testInvalidSchema() {
+        assertSame(EventAttributeSchema.NONE, EventAttributeSchema.parse(null));
+        assertSame(EventAttributeSchema.NONE, EventAttributeSchema.parse("not json"));
+        assertSame(EventAttributeSchema.NONE, EventAttributeSchema.parse("{\"Checkout\": {\"total\": \"money\"}}"));
+        assertTrue(EventAttributeSchema.NONE.isEmpty());
+
+        EventAttributeSchema schema = EventAttributeSchema.parse("{\"Checkout\": \"integer\", \"Search\": {\"results\": \"integer\", \"page\": \"unknown\"}}");
+        assertNull(schema.get("Checkout"));
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("results", "24");
+        attributes.put("page", "2");
+        Map<String, Object> eventTags = schema.get("Search").convert(attributes, new StripedCounter());
+        assertEquals(24, eventTags.get("results"));
+        assertEquals("2", eventTags.get("page"));
+    }
+}
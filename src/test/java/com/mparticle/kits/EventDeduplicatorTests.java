@@ -0,0 +1,77 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventDeduplicatorTests {
+
+    @Test
+    public void testDuplicatesWithinWindow() {
+        EventDeduplicator deduplicator = new EventDeduplicator(1000, 64);
+        long now = TimeUnit.SECONDS.toNanos(100);
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("revenue", 1999);
+        assertFalse(deduplicator.isDuplicate(createEvent("purchase", "user", attributes), now));
+        assertTrue(deduplicator.isDuplicate(createEvent("purchase", "user", new HashMap<>(attributes)), now + TimeUnit.MILLISECONDS.toNanos(999)));
+
+        //the window is over
+        assertFalse(deduplicator.isDuplicate(createEvent("purchase", "user", attributes), now + TimeUnit.MILLISECONDS.toNanos(1500)));
+
+        //a different user, name or attributes is a different event
+        assertFalse(deduplicator.isDuplicate(createEvent("purchase", "user2", attributes), now));
+        assertFalse(deduplicator.isDuplicate(createEvent("refund", "user", attributes), now));
+        assertFalse(deduplicator.isDuplicate(createEvent("purchase", "user", null), now));
+        attributes.put("revenue", 2000);
+        assertFalse(deduplicator.isDuplicate(createEvent("purchase", "user", attributes), now));
+    }
+
+    @Test
+    public void testFingerprint() {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("a", "1");
+        attributes.put("b", 2.0);
+        Map<String, Object> reversed = new LinkedHashMap<>();
+        reversed.put("b", 2.0);
+        reversed.put("a", "1");
+        assertEquals(EventDeduplicator.fingerprint("event", "user", attributes), EventDeduplicator.fingerprint("event", "user", reversed));
+        assertNotEquals(EventDeduplicator.fingerprint("ab", "c", null), EventDeduplicator.fingerprint("a", "bc", null));
+        assertNotEquals(EventDeduplicator.fingerprint("event", null, null), EventDeduplicator.fingerprint("event", "", null));
+        assertNotEquals(0, EventDeduplicator.fingerprint(null, null, null));
+    }
+
+    /**
+     * Memory is fixed: once the table is full, older events are forgotten rather than the table growing
+     */
+    @Test
+    public void testFixedCapacity() {
+        EventDeduplicator deduplicator = new EventDeduplicator(60000, 100);
+        assertEquals(128, deduplicator.capacity());
+        long now = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(deduplicator.isDuplicate(createEvent("event" + i, "user", null), now++));
+        }
+        assertEquals(128, deduplicator.capacity());
+        assertTrue(deduplicator.isDuplicate(createEvent("event9999", "user", null), now));
+        assertFalse(deduplicator.isDuplicate(createEvent("event0", "user", null), now));
+
+        deduplicator.clear();
+        assertFalse(deduplicator.isDuplicate(createEvent("event9999", "user", null), now));
+    }
+
+    private static OptimizelyKit.OptimizelyEvent createEvent(String eventName, String userId, Map<String, Object> attributes) {
+        OptimizelyKit.OptimizelyEvent event = new OptimizelyKit.OptimizelyEvent();
+        event.eventName = eventName;
+        event.userId = userId;
+        event.eventAttributes = attributes;
+        return event;
+    }
+}
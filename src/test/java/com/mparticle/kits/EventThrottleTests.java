@@ -0,0 +1,100 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventThrottleTests {
+
+    @Test
+    public void testParse() {
+        assertSame(EventThrottle.NONE, EventThrottle.parse(null, null));
+        assertSame(EventThrottle.NONE, EventThrottle.parse("not json", "{\"scroll\": 2}"));
+
+        EventThrottle throttle = EventThrottle.parse(
+                "{\"scroll\": {\"perSecond\": 1, \"burst\": 2}, \"invalid\": {\"burst\": 2}}",
+                "{\"scroll\": 0.5, \"progress\": 0.1}");
+        assertFalse(throttle.isEmpty());
+        assertNull(throttle.get("invalid"));
+        assertNull(throttle.get("other"));
+        assertNotNull(throttle.get("progress"));
+        assertEquals(0.5, throttle.get("scroll").sampleRate, 0);
+        assertTrue(throttle.get("scroll").isSampling());
+    }
+
+    @Test
+    public void testTokenBucket() {
+        EventThrottle.Rule rule = EventThrottle.parse("{\"scroll\": {\"perSecond\": 2, \"burst\": 3}}", null).get("scroll");
+        long now = TimeUnit.SECONDS.toNanos(100);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(EventThrottle.ALLOWED, rule.check("user", now));
+        }
+        assertEquals(EventThrottle.RATE_LIMITED, rule.check("user", now));
+
+        //half a second refills one token
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        assertEquals(EventThrottle.ALLOWED, rule.check("user", now));
+        assertEquals(EventThrottle.RATE_LIMITED, rule.check("user", now));
+
+        //the bucket never holds more than its burst
+        now += TimeUnit.SECONDS.toNanos(60);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(EventThrottle.ALLOWED, rule.check("user", now));
+        }
+        assertEquals(EventThrottle.RATE_LIMITED, rule.check("user", now));
+    }
+
+    /**
+     * A user should always be in or out of the sample, and the fraction of users sampled in
+     * should be close to the sample rate
+     */
+    @Test
+    public void testSampling() {
+        int sampled = 0;
+        int users = 20000;
+        for (int i = 0; i < users; i++) {
+            String userId = "user" + i;
+            boolean isSampled = EventThrottle.isSampled(userId, 0.25);
+            assertEquals(isSampled, EventThrottle.isSampled(userId, 0.25));
+            if (isSampled) {
+                sampled++;
+                //a user sampled in at a lower rate stays in at a higher one
+                assertTrue(EventThrottle.isSampled(userId, 0.5));
+            }
+        }
+        assertEquals(0.25, sampled / (double) users, 0.02);
+
+        assertTrue(EventThrottle.isSampled("user", 1));
+        assertFalse(EventThrottle.isSampled("user", 0));
+        assertFalse(EventThrottle.isSampled(null, 0.5));
+    }
+
+    /**
+     * Users that are sampled out shouldn't use up the rate limit
+     */
+    @Test
+    public void testSampledOutDoesNotConsumeTokens() {
+        String sampledOut = null;
+        String sampledIn = null;
+        for (int i = 0; sampledOut == null || sampledIn == null; i++) {
+            String userId = "user" + i;
+            if (EventThrottle.isSampled(userId, 0.5)) {
+                sampledIn = userId;
+            } else {
+                sampledOut = userId;
+            }
+        }
+        EventThrottle.Rule rule = EventThrottle.parse("{\"scroll\": {\"perSecond\": 0, \"burst\": 1}}", "{\"scroll\": 0.5}").get("scroll");
+        assertEquals(EventThrottle.SAMPLED_OUT, rule.check(sampledOut, 0));
+        assertEquals(EventThrottle.SAMPLED_OUT, rule.check(sampledOut, 0));
+        assertEquals(EventThrottle.ALLOWED, rule.check(sampledIn, 0));
+        assertEquals(EventThrottle.RATE_LIMITED, rule.check(sampledIn, 0));
+    }
+}
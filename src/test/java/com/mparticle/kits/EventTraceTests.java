@@ -0,0 +1,53 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventTraceTests {
+
+    /**
+     * Once the buffer is full, the oldest records should be overwritten first
+     */
+    @Test
+    public void testRingBufferKeepsMostRecent() {
+        EventTrace trace = new EventTrace(EventTrace.DEFAULT_CAPACITY);
+        trace.configure(4, true);
+        assertTrue(trace.dump().isEmpty());
+        for (int i = 0; i < 10; i++) {
+            trace.record(EventTrace.Type.TRACKED, "event" + i, "user");
+        }
+        List<EventTrace.Record> records = trace.dump();
+        assertEquals(4, records.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("event" + (i + 6), records.get(i).getEventName());
+        }
+
+        trace.clear();
+        assertTrue(trace.dump().isEmpty());
+    }
+
+    @Test
+    public void testRecordMessages() {
+        EventTrace trace = new EventTrace(EventTrace.DEFAULT_CAPACITY);
+        trace.setEnabled(true);
+        trace.record(EventTrace.Type.CUSTOM_USER_ID, "purchase", "customUser");
+        trace.record(EventTrace.Type.REVENUE, "eCommerce - purchase - Total", null, 1999);
+
+        List<EventTrace.Record> records = trace.dump();
+        assertEquals(2, records.size());
+        EventTrace.Record userId = records.get(0);
+        assertEquals(EventTrace.Type.CUSTOM_USER_ID, userId.getType());
+        assertEquals("customUser", userId.getDetail());
+        assertEquals("Applying custom userId: \"customUser\" to Optimizely Event based on customFlag", userId.getMessage());
+        EventTrace.Record revenue = records.get(1);
+        assertNull(revenue.getDetail());
+        assertEquals(1999, revenue.getValue());
+        assertEquals("Applying revenue: \"1999\" to Optimizely Event based on transactionAttributes", revenue.getMessage());
+        assertTrue(revenue.getTimestamp() >= userId.getTimestamp());
+    }
+}
@@ -0,0 +1,137 @@
+package com.mparticle.kits;
+
+import com.optimizely.ab.android.sdk.OptimizelyClient;
+import com.optimizely.ab.config.Experiment;
+import com.optimizely.ab.config.FeatureFlag;
+import com.optimizely.ab.config.FeatureVariable;
+import com.optimizely.ab.config.FeatureVariableUsageInstance;
+import com.optimizely.ab.config.ProjectConfig;
+import com.optimizely.ab.config.Variation;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class FeatureSnapshotTests {
+    private final Map<String, String> attributes = Collections.singletonMap("plan", "pro");
+
+    @Test
+    public void testEvaluate() {
+        Experiment experiment = Mockito.mock(Experiment.class);
+        Mockito.when(experiment.getId()).thenReturn("1");
+        Mockito.when(experiment.getKey()).thenReturn("checkout_test");
+        Variation variation = Mockito.mock(Variation.class);
+        Mockito.when(variation.getFeatureEnabled()).thenReturn(true);
+        List<FeatureVariableUsageInstance> usages = Arrays.asList(createUsage("10", "green"), createUsage("11", "3"), createUsage("12", "0.15"));
+        Mockito.when(variation.getFeatureVariableUsageInstances()).thenReturn(usages);
+
+        FeatureFlag checkout = createFeatureFlag("checkout", Collections.singletonList("1"),
+                createVariable("10", "color", FeatureVariable.VariableType.STRING, "blue"),
+                createVariable("11", "steps", FeatureVariable.VariableType.INTEGER, "1"),
+                createVariable("12", "discount", FeatureVariable.VariableType.DOUBLE, "0"),
+                //not set by the variation
+                createVariable("13", "express", FeatureVariable.VariableType.BOOLEAN, "true"));
+        FeatureFlag search = createFeatureFlag("search", Collections.<String>emptyList(),
+                createVariable("20", "results", FeatureVariable.VariableType.INTEGER, "10"));
+        FeatureFlag banner = createFeatureFlag("banner", Collections.<String>emptyList(),
+                createVariable("30", "text", FeatureVariable.VariableType.STRING, "Welcome"),
+                createVariable("31", "count", FeatureVariable.VariableType.INTEGER, "not a number"));
+        ProjectConfig projectConfig = Mockito.mock(ProjectConfig.class);
+        Mockito.when(projectConfig.getRevision()).thenReturn("42");
+        Mockito.when(projectConfig.getExperiments()).thenReturn(Collections.singletonList(experiment));
+        Mockito.when(projectConfig.getFeatureFlags()).thenReturn(Arrays.asList(checkout, search, banner));
+
+        OptimizelyClient client = Mockito.mock(OptimizelyClient.class);
+        Mockito.when(client.getVariation(Mockito.eq("checkout_test"), Mockito.eq("user"), Mockito.any(Map.class))).thenReturn(variation);
+        //enabled by its rollout
+        Mockito.when(client.isFeatureEnabled(Mockito.eq("search"), Mockito.eq("user"), Mockito.any(Map.class))).thenReturn(true);
+        Mockito.when(client.getFeatureVariableInteger(Mockito.eq("search"), Mockito.eq("results"), Mockito.eq("user"), Mockito.any(Map.class))).thenReturn(25);
+        Mockito.when(client.isFeatureEnabled(Mockito.eq("banner"), Mockito.eq("user"), Mockito.any(Map.class))).thenReturn(false);
+
+        FeatureSnapshot snapshot = FeatureSnapshot.evaluate(client, projectConfig, "user", attributes);
+        assertEquals("user", snapshot.getUserId());
+        assertEquals("42", snapshot.getRevision());
+        assertTrue(snapshot.isFeatureEnabled("checkout"));
+        assertTrue(snapshot.isFeatureEnabled("search"));
+        assertFalse(snapshot.isFeatureEnabled("banner"));
+        assertTrue(snapshot.hasFeature("banner"));
+        assertFalse(snapshot.hasFeature("unknown"));
+        assertEquals("green", snapshot.getFeatureVariableString("checkout", "color", "red"));
+        assertEquals(3, snapshot.getFeatureVariableInteger("checkout", "steps", 0));
+        assertEquals(0.15, snapshot.getFeatureVariableDouble("checkout", "discount", 0), 0);
+        //the variable's default value
+        assertTrue(snapshot.getFeatureVariableBoolean("checkout", "express", false));
+        assertEquals(25, snapshot.getFeatureVariableInteger("search", "results", 0));
+        //a disabled feature's variables take their default values
+        assertEquals("Welcome", snapshot.getFeatureVariableString("banner", "text", "Hello"));
+        //a value that doesn't parse as its type
+        assertEquals(5, snapshot.getFeatureVariableInteger("banner", "count", 5));
+        //a different type
+        assertEquals(1, snapshot.getFeatureVariableInteger("checkout", "color", 1));
+        assertEquals("blue", snapshot.getFeatureVariableString("unknown", "color", "blue"));
+
+        //the feature test was decided once, without an impression, and its variables read from the variation
+        verify(client, times(1)).getVariation(Mockito.eq("checkout_test"), Mockito.anyString(), Mockito.any(Map.class));
+        verify(client, never()).isFeatureEnabled(Mockito.eq("checkout"), Mockito.anyString(), Mockito.any(Map.class));
+        verify(client, never()).activate(Mockito.anyString(), Mockito.anyString(), Mockito.any(Map.class));
+        verify(client, never()).getFeatureVariableString(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(), Mockito.any(Map.class));
+        verify(client, never()).getFeatureVariableInteger(Mockito.eq("banner"), Mockito.anyString(), Mockito.anyString(), Mockito.any(Map.class));
+    }
+
+    @Test
+    public void testKeyTable() {
+        FeatureSnapshot.KeyTable table = new FeatureSnapshot.KeyTable(100);
+        for (int i = 0; i < 100; i++) {
+            table.put("key" + i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, table.indexOf("key" + i));
+        }
+        assertEquals(-1, table.indexOf("key100"));
+        assertEquals(-1, table.indexOf(null));
+        assertEquals(-1, FeatureSnapshot.KeyTable.EMPTY.indexOf("key0"));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(FeatureSnapshot.EMPTY.getUserId());
+        assertFalse(FeatureSnapshot.EMPTY.isFeatureEnabled("checkout"));
+        assertEquals(2.5, FeatureSnapshot.EMPTY.getFeatureVariableDouble("checkout", "discount", 2.5), 0);
+    }
+
+    private FeatureFlag createFeatureFlag(String key, List<String> experimentIds, FeatureVariable... variables) {
+        FeatureFlag featureFlag = Mockito.mock(FeatureFlag.class);
+        Mockito.when(featureFlag.getKey()).thenReturn(key);
+        Mockito.when(featureFlag.getExperimentIds()).thenReturn(experimentIds);
+        Mockito.when(featureFlag.getVariables()).thenReturn(Arrays.asList(variables));
+        return featureFlag;
+    }
+
+    private FeatureVariable createVariable(String id, String key, FeatureVariable.VariableType type, String defaultValue) {
+        FeatureVariable variable = Mockito.mock(FeatureVariable.class);
+        Mockito.when(variable.getId()).thenReturn(id);
+        Mockito.when(variable.getKey()).thenReturn(key);
+        Mockito.when(variable.getType()).thenReturn(type);
+        Mockito.when(variable.getDefaultValue()).thenReturn(defaultValue);
+        return variable;
+    }
+
+    private FeatureVariableUsageInstance createUsage(String variableId, String value) {
+        FeatureVariableUsageInstance usage = Mockito.mock(FeatureVariableUsageInstance.class);
+        Mockito.when(usage.getId()).thenReturn(variableId);
+        Mockito.when(usage.getValue()).thenReturn(value);
+        return usage;
+    }
+}
@@ -0,0 +1,61 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryEventStoreTests {
+
+    @Test
+    public void testFifoWithinCapacity() {
+        InMemoryEventStore store = new InMemoryEventStore(3);
+        for (int i = 0; i < 5; i++) {
+            store.offer(createEvent(i, OptimizelyKit.OptimizelyEvent.PRIORITY_DEFAULT));
+        }
+        assertEquals(3, store.size());
+        assertEquals("event 2", store.poll().eventName);
+        assertEquals("event 3", store.poll().eventName);
+        assertEquals("event 4", store.poll().eventName);
+        assertNull(store.poll());
+    }
+
+    /**
+     * Revenue events should never be evicted while there are lower priority events to evict instead
+     */
+    @Test
+    public void testPriorityEviction() {
+        InMemoryEventStore store = new InMemoryEventStore(3);
+        store.offer(createEvent(0, OptimizelyKit.OptimizelyEvent.PRIORITY_REVENUE));
+        store.offer(createEvent(1, OptimizelyKit.OptimizelyEvent.PRIORITY_DEFAULT));
+        store.offer(createEvent(2, OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM));
+        assertEquals(1, store.offer(createEvent(3, OptimizelyKit.OptimizelyEvent.PRIORITY_REVENUE)));
+        assertEquals(1, store.offer(createEvent(4, OptimizelyKit.OptimizelyEvent.PRIORITY_REVENUE)));
+        assertEquals(1, store.offer(createEvent(5, OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM)));
+        assertEquals(3, store.size());
+        assertEquals("event 0", store.poll().eventName);
+        assertEquals("event 3", store.poll().eventName);
+        assertEquals("event 4", store.poll().eventName);
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void testDropNewestEviction() {
+        InMemoryEventStore store = new InMemoryEventStore(2, PendingEventStore.EvictionPolicy.DROP_NEWEST);
+        store.offer(createEvent(0, OptimizelyKit.OptimizelyEvent.PRIORITY_DEFAULT));
+        store.offer(createEvent(1, OptimizelyKit.OptimizelyEvent.PRIORITY_DEFAULT));
+        assertEquals(1, store.offer(createEvent(2, OptimizelyKit.OptimizelyEvent.PRIORITY_DEFAULT)));
+        assertEquals(1, store.offer(createEvent(3, OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM)));
+        assertEquals("event 0", store.poll().eventName);
+        assertEquals("event 3", store.poll().eventName);
+    }
+
+    private OptimizelyKit.OptimizelyEvent createEvent(int i, int priority) {
+        OptimizelyKit.OptimizelyEvent event = new OptimizelyKit.OptimizelyEvent();
+        event.eventName = "event " + i;
+        event.userId = "user";
+        event.priority = priority;
+        return event;
+    }
+}
@@ -0,0 +1,81 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KitMetricsTests {
+
+    /**
+     * Increments from concurrent threads should all be counted
+     */
+    @Test
+    public void testStripedCounterConcurrentIncrements() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final int threads = 8;
+        final int perThread = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        counter.increment();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * perThread, counter.sum());
+
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        KitMetrics.Histogram histogram = new KitMetrics.Histogram();
+        assertEquals(-1, histogram.snapshot().getPercentileMicros(50));
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(5));
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(400));
+        }
+        histogram.record(TimeUnit.SECONDS.toNanos(5));
+
+        KitMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(10, snapshot.getPercentileMicros(50));
+        assertEquals(10, snapshot.getPercentileMicros(90));
+        assertEquals(500, snapshot.getPercentileMicros(99));
+        assertEquals(Long.MAX_VALUE, snapshot.getPercentileMicros(100));
+    }
+
+    @Test
+    public void testSnapshotIncludesDispatchDrops() {
+        KitMetrics metrics = new KitMetrics();
+        metrics.received.add(3);
+        metrics.dropped.add(2);
+        KitMetrics.Snapshot snapshot = metrics.snapshot(5, 0, false);
+        assertEquals(3, snapshot.getEventsReceived());
+        assertEquals(7, snapshot.getEventsDropped());
+        assertEquals(-1, snapshot.getTimeToClientMillis());
+
+        assertEquals(-1, snapshot.getStartupPhaseMicros(KitMetrics.StartupPhase.KIT_CREATE));
+
+        metrics.onKitCreated();
+        metrics.recordStartupPhase(KitMetrics.StartupPhase.KIT_CREATE, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.onClientAvailable();
+        snapshot = metrics.snapshot(0, 0, false);
+        assertTrue(snapshot.getTimeToClientMillis() >= 0);
+        assertEquals(3000, snapshot.getStartupPhaseMicros(KitMetrics.StartupPhase.KIT_CREATE));
+        assertEquals(-1, snapshot.getStartupPhaseMicros(KitMetrics.StartupPhase.WARM_START));
+    }
+}
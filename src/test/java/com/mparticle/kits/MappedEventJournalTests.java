@@ -0,0 +1,224 @@
+package com.mparticle.kits;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedEventJournalTests {
+    private File file;
+
+    @Before
+    public void before() throws IOException {
+        file = File.createTempFile("optimizely", ".journal");
+        file.delete();
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    /**
+     * Events should come back in order, with all of their attributes, after the journal is reopened
+     */
+    @Test
+    public void testSurvivesReopen() throws IOException {
+        MappedEventJournal journal = new MappedEventJournal(file, 100);
+        for (int i = 0; i < 20; i++) {
+            journal.offer(createEvent(i));
+        }
+        journal.close();
+
+        journal = new MappedEventJournal(file, 100);
+        assertEquals(20, journal.size());
+        for (int i = 0; i < 20; i++) {
+            OptimizelyKit.OptimizelyEvent event = journal.poll();
+            assertEquals("event " + i, event.eventName);
+            assertEquals("user" + i, event.userId);
+            assertEquals(createEvent(i).userAttributes, event.userAttributes);
+            assertEquals(i, event.eventAttributes.get("revenue"));
+            assertEquals(i * 1.5, (Double) event.eventAttributes.get("value"), 0.0);
+            assertEquals("text", event.eventAttributes.get("string"));
+        }
+        assertNull(journal.poll());
+        journal.close();
+    }
+
+    /**
+     * The oldest events should be evicted once capacity is reached
+     */
+    @Test
+    public void testCapacity() throws IOException {
+        MappedEventJournal journal = new MappedEventJournal(file, 5);
+        for (int i = 0; i < 12; i++) {
+            journal.offer(createEvent(i));
+        }
+        assertEquals(5, journal.size());
+        for (int i = 7; i < 12; i++) {
+            assertEquals("event " + i, journal.poll().eventName);
+        }
+        journal.close();
+
+        //reopening with a smaller capacity trims the oldest events
+        journal = new MappedEventJournal(file, 5);
+        for (int i = 0; i < 5; i++) {
+            journal.offer(createEvent(i));
+        }
+        journal.close();
+        journal = new MappedEventJournal(file, 2);
+        assertEquals(2, journal.size());
+        assertEquals("event 3", journal.poll().eventName);
+        journal.close();
+    }
+
+    /**
+     * Interleaved writes and reads, well past the size of the initial mapping, should neither lose
+     * nor reorder events
+     */
+    @Test
+    public void testCompactionAndGrowth() throws IOException {
+        MappedEventJournal journal = new MappedEventJournal(file, 10000);
+        int written = 0;
+        int read = 0;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 200; i++) {
+                journal.offer(createEvent(written++));
+            }
+            for (int i = 0; i < 150; i++) {
+                assertEquals("event " + read, journal.poll().eventName);
+                read++;
+            }
+        }
+        assertEquals(written - read, journal.size());
+        while (!journal.isEmpty()) {
+            assertEquals("event " + read, journal.poll().eventName);
+            read++;
+        }
+        assertEquals(written, read);
+        journal.close();
+    }
+
+    /**
+     * Overflow should evict from the lowest priority class first, and evicted records should stay
+     * evicted after the journal is reopened
+     */
+    @Test
+    public void testPriorityEviction() throws IOException {
+        MappedEventJournal journal = new MappedEventJournal(file, 4);
+        journal.offer(createEvent(0, OptimizelyKit.OptimizelyEvent.PRIORITY_REVENUE));
+        journal.offer(createEvent(1, OptimizelyKit.OptimizelyEvent.PRIORITY_DEFAULT));
+        journal.offer(createEvent(2, OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM));
+        journal.offer(createEvent(3, OptimizelyKit.OptimizelyEvent.PRIORITY_DEFAULT));
+        //evicts event 1, the oldest ordinary event
+        assertEquals(1, journal.offer(createEvent(4, OptimizelyKit.OptimizelyEvent.PRIORITY_REVENUE)));
+        //evicts event 3
+        assertEquals(1, journal.offer(createEvent(5, OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM)));
+        //nothing lower than an ordinary event to evict, so it is dropped
+        assertEquals(1, journal.offer(createEvent(6, OptimizelyKit.OptimizelyEvent.PRIORITY_DEFAULT)));
+        assertEquals(4, journal.size());
+        journal.close();
+
+        journal = new MappedEventJournal(file, 4);
+        assertEquals(4, journal.size());
+        assertEquals("event 0", journal.poll().eventName);
+        OptimizelyKit.OptimizelyEvent event = journal.poll();
+        assertEquals("event 2", event.eventName);
+        assertEquals(OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM, event.priority);
+        assertEquals("event 4", journal.poll().eventName);
+        assertEquals("event 5", journal.poll().eventName);
+        assertNull(journal.poll());
+        journal.close();
+    }
+
+    @Test
+    public void testDropNewestEviction() throws IOException {
+        MappedEventJournal journal = new MappedEventJournal(file, 3, PendingEventStore.EvictionPolicy.DROP_NEWEST);
+        journal.offer(createEvent(0, OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM));
+        journal.offer(createEvent(1, OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM));
+        journal.offer(createEvent(2, OptimizelyKit.OptimizelyEvent.PRIORITY_REVENUE));
+        //the incoming event is the newest of the lowest class
+        assertEquals(1, journal.offer(createEvent(3, OptimizelyKit.OptimizelyEvent.PRIORITY_CUSTOM)));
+        //evicts event 1, the newest custom event
+        assertEquals(1, journal.offer(createEvent(4, OptimizelyKit.OptimizelyEvent.PRIORITY_REVENUE)));
+        assertEquals("event 0", journal.poll().eventName);
+        assertEquals("event 2", journal.poll().eventName);
+        assertEquals("event 4", journal.poll().eventName);
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testCorruptJournalDiscarded() throws IOException {
+        MappedEventJournal journal = new MappedEventJournal(file, 10);
+        journal.offer(createEvent(1));
+        journal.offer(createEvent(2));
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(16);
+        raf.writeInt(7);
+        raf.close();
+
+        journal = new MappedEventJournal(file, 10);
+        assertTrue(journal.isEmpty());
+        journal.offer(createEvent(3));
+        assertEquals("event 3", journal.poll().eventName);
+        journal.close();
+    }
+
+    /**
+     * A record whose string length runs past the end of the record should be discarded, rather than
+     * allocated
+     */
+    @Test
+    public void testCorruptRecordDiscarded() throws IOException {
+        MappedEventJournal journal = new MappedEventJournal(file, 10);
+        journal.offer(createEvent(1));
+        journal.offer(createEvent(2));
+        journal.close();
+
+        //the event name length of the first record, after the header and the record's length prefix
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(24);
+        raf.writeInt(Integer.MAX_VALUE);
+        raf.close();
+
+        journal = new MappedEventJournal(file, 10);
+        assertEquals(2, journal.size());
+        assertNull(journal.poll());
+        assertTrue(journal.isEmpty());
+        journal.offer(createEvent(3));
+        assertEquals("event 3", journal.poll().eventName);
+        journal.close();
+    }
+
+    private OptimizelyKit.OptimizelyEvent createEvent(int i, int priority) {
+        OptimizelyKit.OptimizelyEvent event = createEvent(i);
+        event.priority = priority;
+        return event;
+    }
+
+    private OptimizelyKit.OptimizelyEvent createEvent(int i) {
+        OptimizelyKit.OptimizelyEvent event = new OptimizelyKit.OptimizelyEvent();
+        event.eventName = "event " + i;
+        event.userId = "user" + i;
+        Map<String, String> userAttributes = new HashMap<>();
+        userAttributes.put("key" + i, "value" + i);
+        userAttributes.put("unicode", "é中");
+        event.userAttributes = userAttributes;
+        event.addEventAttribute("revenue", i);
+        event.addEventAttribute("value", i * 1.5);
+        event.addEventAttribute("string", "text");
+        return event;
+    }
+}
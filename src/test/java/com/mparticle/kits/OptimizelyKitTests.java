@@ -21,6 +21,10 @@ import com.mparticle.mock.MockKitConfiguration;
 import com.mparticle.testutils.RandomUtils;
 import com.mparticle.testutils.TestingUtils;
 import com.optimizely.ab.android.sdk.OptimizelyClient;
+import com.optimizely.ab.config.EventType;
+import com.optimizely.ab.config.FeatureFlag;
+import com.optimizely.ab.config.ProjectConfig;
+import com.optimizely.ab.config.Variation;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -29,16 +33,20 @@ import org.junit.Test;
 import org.mockito.Mockito;
 import org.mockito.invocation.Invocation;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.times;
@@ -175,18 +183,21 @@ public class OptimizelyKitTests {
         Integer expectedEventCount = CommerceEventUtils.expand(commerceEvent).size();
 
         settings.value = new JSONObject().put(OptimizelyKit.USER_ID_FIELD_KEY, OptimizelyKit.USER_ID_EMAIL_VALUE);
+        optimizelyKit.onUserIdFieldChanged(optimizelyKit.getSettings());
         expectedUserId.value = email;
         optimizelyKit.logEvent(commerceEvent);
         assertEquals(expectedEventCount, count.value);
         count.value = 0;
 
         settings.value = new JSONObject().put(OptimizelyKit.USER_ID_FIELD_KEY, OptimizelyKit.USER_ID_CUSTOMER_ID_VALUE);
+        optimizelyKit.onUserIdFieldChanged(optimizelyKit.getSettings());
         expectedUserId.value = customerId;
         optimizelyKit.logEvent(commerceEvent);
         assertEquals(expectedEventCount, count.value);
         count.value = 0;
 
         settings.value = new JSONObject().put(OptimizelyKit.USER_ID_FIELD_KEY, OptimizelyKit.USER_ID_MPID_VALUE);
+        optimizelyKit.onUserIdFieldChanged(optimizelyKit.getSettings());
         expectedUserId.value = String.valueOf(mpid);
         optimizelyKit.logEvent(commerceEvent);
         assertEquals(expectedEventCount, count.value);
@@ -195,6 +206,7 @@ public class OptimizelyKitTests {
         String das = UUID.randomUUID().toString();
         Mockito.when(MParticle.getInstance().Identity().getDeviceApplicationStamp()).thenReturn(das);
         settings.value = new JSONObject().put(OptimizelyKit.USER_ID_FIELD_KEY, OptimizelyKit.USER_ID_DAS_VALUE);
+        optimizelyKit.onUserIdFieldChanged(optimizelyKit.getSettings());
         expectedUserId.value = das;
         optimizelyKit.logEvent(commerceEvent);
         assertEquals(expectedEventCount, count.value);
@@ -202,6 +214,7 @@ public class OptimizelyKitTests {
 
         //test default, should be das
         settings.value = new JSONObject();
+        optimizelyKit.onUserIdFieldChanged(optimizelyKit.getSettings());
         expectedUserId.value = das;
         optimizelyKit.logEvent(commerceEvent);
         //Don't log events if there is no userId type present
@@ -212,6 +225,7 @@ public class OptimizelyKitTests {
         Mockito.when(MParticle.getInstance().Identity().getCurrentUser()).thenReturn(null);
         //test default when no user is present, default to das
         settings.value = new JSONObject();
+        optimizelyKit.onUserIdFieldChanged(optimizelyKit.getSettings());
         expectedUserId.value = das;
         optimizelyKit.logEvent(new MPEvent.Builder("an event", MParticle.EventType.Location).build());
         optimizelyKit.logEvent(commerceEvent);
@@ -459,6 +473,8 @@ public class OptimizelyKitTests {
 
         Mockito.when(optimizelyClient.isValid()).thenReturn(true);
         optimizelyKit.onStart(optimizelyClient);
+        //queued events are replayed in the background
+        optimizelyKit.flush();
         verify(optimizelyClient, times(expectedEvents)).track(Mockito.anyString(), Mockito.anyString(), Mockito.any(Map.class), Mockito.any(Map.class));
         count = invocationCount(optimizelyClient, "track");
         assertEquals(expectedEvents, count);
@@ -503,6 +519,255 @@ public class OptimizelyKitTests {
         assertEquals(4, count.value.intValue());
     }
 
+    /**
+     * User attributes should be fetched once per user, shared between events, and kept current by
+     * the attribute callbacks
+     */
+    @Test
+    public void testUserAttributesCached() {
+        final Map<String, String> userAttributes = randomUtils.getRandomAttributes(4);
+        final Mutable<Integer> fetchCount = new Mutable<>(0);
+        MParticleUser user = new EmptyMParticleUser() {
+            @Nullable
+            @Override
+            public Map<String, Object> getUserAttributes(@Nullable UserAttributeListener userAttributeListener) {
+                fetchCount.value++;
+                userAttributeListener.onUserAttributesReceived(userAttributes, new HashMap<String, List<String>>(), 1L);
+                return null;
+            }
+        };
+        Mockito.when(MParticle.getInstance().Identity().getCurrentUser()).thenReturn(user);
+
+        final List<Map<String, ?>> received = new ArrayList<>();
+        OptimizelyKit optimizelyKit = new MockOptimizelyKit() {
+            @Override
+            void logOptimizelyEvent(OptimizelyEvent trackEvent) {
+                received.add(trackEvent.userAttributes);
+            }
+        };
+        MPEvent event = new MPEvent.Builder("An event", MParticle.EventType.Location).build();
+
+        optimizelyKit.logEvent(event);
+        optimizelyKit.logEvent(event);
+        assertEquals(1, fetchCount.value.intValue());
+        assertEquals(userAttributes, received.get(0));
+        assertTrue(received.get(0) == received.get(1));
+
+        optimizelyKit.setUserAttribute("new key", "new value");
+        optimizelyKit.logEvent(event);
+        assertEquals(1, fetchCount.value.intValue());
+        assertEquals("new value", received.get(2).get("new key"));
+
+        optimizelyKit.removeUserAttribute("new key");
+        optimizelyKit.logEvent(event);
+        assertEquals(1, fetchCount.value.intValue());
+        assertEquals(userAttributes, received.get(3));
+
+        optimizelyKit.onLoginCompleted(user, null);
+        optimizelyKit.logEvent(event);
+        assertEquals(2, fetchCount.value.intValue());
+    }
+
+    /**
+     * A CommerceEvent should resolve the user once, however many events it expands into
+     */
+    @Test
+    public void testCommerceEventSingleAttributeFetch() {
+        final Map<String, String> userAttributes = randomUtils.getRandomAttributes(4);
+        final Mutable<Integer> fetchCount = new Mutable<>(0);
+        MParticleUser user = new EmptyMParticleUser() {
+            @Nullable
+            @Override
+            public Map<String, Object> getUserAttributes(@Nullable UserAttributeListener userAttributeListener) {
+                fetchCount.value++;
+                userAttributeListener.onUserAttributesReceived(userAttributes, new HashMap<String, List<String>>(), 1L);
+                return null;
+            }
+        };
+        Mockito.when(MParticle.getInstance().Identity().getCurrentUser()).thenReturn(user);
+
+        CommerceEvent.Builder builder = new CommerceEvent.Builder(Product.PURCHASE, new Product.Builder("product0", "0", 1.0).build())
+                .transactionAttributes(new TransactionAttributes("999").setRevenue(30.0));
+        for (int i = 1; i < 30; i++) {
+            builder.addProduct(new Product.Builder("product" + i, String.valueOf(i), 1.0).build());
+        }
+        CommerceEvent commerceEvent = builder.build();
+
+        final List<OptimizelyKit.OptimizelyEvent> received = new ArrayList<>();
+        OptimizelyKit optimizelyKit = new MockOptimizelyKit() {
+            @Override
+            void logOptimizelyEvent(OptimizelyEvent trackEvent) {
+                received.add(trackEvent);
+            }
+        };
+        optimizelyKit.logEvent(commerceEvent);
+        assertEquals(CommerceEventUtils.expand(commerceEvent).size(), received.size());
+        assertEquals(1, fetchCount.value.intValue());
+        for (OptimizelyKit.OptimizelyEvent event : received) {
+            assertEquals(String.valueOf(1L), event.userId);
+            assertTrue(received.get(0).userAttributes == event.userAttributes);
+        }
+    }
+
+    /**
+     * Events whose key isn't in the datafile should be dropped before any work is done for them,
+     * and the index should follow datafile updates
+     */
+    @Test
+    public void testUntrackedEventsSkipped() throws InterruptedException {
+        OptimizelyClient optimizelyClient = Mockito.mock(OptimizelyClient.class);
+        Mockito.when(optimizelyClient.isValid()).thenReturn(true);
+        Mockito.when(optimizelyClient.getProjectConfig()).thenReturn(createProjectConfig("Tracked"));
+        OptimizelyKit.setOptimizelyClient(optimizelyClient);
+        try {
+            final List<String> received = new ArrayList<>();
+            OptimizelyKit optimizelyKit = new MockOptimizelyKit() {
+                @Override
+                void logOptimizelyEvent(OptimizelyEvent trackEvent) {
+                    received.add(trackEvent.eventName);
+                }
+            };
+            assertTrue(optimizelyKit.awaitDatafileIndexed(5, TimeUnit.SECONDS));
+            assertTrue(optimizelyKit.logEvent(new MPEvent.Builder("Tracked", MParticle.EventType.Other).build()) != null);
+            assertNull(optimizelyKit.logEvent(new MPEvent.Builder("Untracked", MParticle.EventType.Other).build()));
+            assertEquals(1, received.size());
+            assertEquals("Tracked", received.get(0));
+            assertEquals(1, optimizelyKit.getUntrackedEventCount());
+
+            //a new datafile, where only the custom named purchase event is tracked
+            Mockito.when(optimizelyClient.getProjectConfig()).thenReturn(createProjectConfig("Purchase"));
+            //indexed in the background, and the previous index doesn't drop the new key meanwhile
+            assertTrue(optimizelyKit.logEvent(new MPEvent.Builder("Purchase", MParticle.EventType.Other).build()) != null);
+            assertTrue(optimizelyKit.awaitDatafileIndexed(5, TimeUnit.SECONDS));
+            received.clear();
+            CommerceEvent commerceEvent = new CommerceEvent.Builder(Product.PURCHASE, new Product.Builder("product1", "1234", 1.0).build())
+                    .addProduct(new Product.Builder("product2", "5678", 2.0).build())
+                    .transactionAttributes(new TransactionAttributes("999").setRevenue(3.0))
+                    .addCustomFlag(OptimizelyKit.OPTIMIZELY_EVENT_NAME, "Purchase")
+                    .build();
+            optimizelyKit.logEvent(commerceEvent);
+            assertEquals(1, received.size());
+            assertEquals("Purchase", received.get(0));
+            assertEquals(CommerceEventUtils.expand(commerceEvent).size(), optimizelyKit.getUntrackedEventCount());
+        } finally {
+            OptimizelyKit.setOptimizelyClient(null);
+        }
+    }
+
+    @Test
+    public void testOptOut() {
+        final List<String> received = new ArrayList<>();
+        OptimizelyKit optimizelyKit = new MockOptimizelyKit() {
+            @Override
+            void logOptimizelyEvent(OptimizelyEvent trackEvent) {
+                received.add(trackEvent.eventName);
+            }
+        };
+        OptimizelyKit.OptimizelyEvent pending = new OptimizelyKit.OptimizelyEvent();
+        pending.eventName = "Pending";
+        optimizelyKit.mEventQueue.offer(pending);
+
+        List<ReportingMessage> messages = optimizelyKit.setOptOut(true);
+        assertEquals(1, messages.size());
+        assertTrue(optimizelyKit.isOptedOut());
+        assertEquals(0, optimizelyKit.mEventQueue.size());
+        assertNull(optimizelyKit.logEvent(new MPEvent.Builder("An event", MParticle.EventType.Other).build()));
+        assertNull(optimizelyKit.logEvent(new CommerceEvent.Builder(Product.PURCHASE, new Product.Builder("product1", "1234", 1.0).build()).build()));
+        assertEquals(0, received.size());
+
+        optimizelyKit.setOptOut(false);
+        assertTrue(optimizelyKit.logEvent(new MPEvent.Builder("An event", MParticle.EventType.Other).build()) != null);
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void testOptOutClearsFeatureSnapshot() throws InterruptedException {
+        Mockito.when(MParticle.getInstance().Identity().getCurrentUser()).thenReturn(new EmptyMParticleUser());
+        FeatureFlag featureFlag = Mockito.mock(FeatureFlag.class);
+        Mockito.when(featureFlag.getKey()).thenReturn("checkout");
+        ProjectConfig projectConfig = createProjectConfig();
+        Mockito.when(projectConfig.getFeatureFlags()).thenReturn(Collections.singletonList(featureFlag));
+        OptimizelyClient optimizelyClient = Mockito.mock(OptimizelyClient.class);
+        Mockito.when(optimizelyClient.isValid()).thenReturn(true);
+        Mockito.when(optimizelyClient.getProjectConfig()).thenReturn(projectConfig);
+        Mockito.when(optimizelyClient.isFeatureEnabled(Mockito.eq("checkout"), Mockito.anyString(), Mockito.any(Map.class))).thenReturn(true);
+        OptimizelyKit.setOptimizelyClient(optimizelyClient);
+        try {
+            OptimizelyKit optimizelyKit = new MockOptimizelyKit();
+            optimizelyKit.refreshFeatureSnapshot();
+            assertTrue(optimizelyKit.getFeatureSnapshot().isFeatureEnabled("checkout"));
+
+            optimizelyKit.setOptOut(true);
+            assertSame(FeatureSnapshot.EMPTY, optimizelyKit.getFeatureSnapshot());
+            //a refresh that was already running doesn't publish flags for the opted out user
+            optimizelyKit.refreshFeatureSnapshot();
+            assertSame(FeatureSnapshot.EMPTY, optimizelyKit.getFeatureSnapshot());
+
+            optimizelyKit.setOptOut(false);
+            assertTrue(optimizelyKit.awaitFeatureSnapshot(5, TimeUnit.SECONDS));
+            assertTrue(optimizelyKit.getFeatureSnapshot().isFeatureEnabled("checkout"));
+        } finally {
+            OptimizelyKit.setOptimizelyClient(null);
+        }
+    }
+
+    /**
+     * getVariation() may be called from the UI thread, so a cache miss shouldn't read the user's
+     * attributes synchronously
+     */
+    @Test
+    public void testVariationAttributesLoadedInBackground() {
+        final Mutable<UserAttributeListener> pending = new Mutable<>(null);
+        final Mutable<Integer> synchronousFetches = new Mutable<>(0);
+        MParticleUser user = new EmptyMParticleUser() {
+            @NonNull
+            @Override
+            public Map<String, Object> getUserAttributes() {
+                synchronousFetches.value++;
+                return new HashMap<>();
+            }
+
+            @Nullable
+            @Override
+            public Map<String, Object> getUserAttributes(@Nullable UserAttributeListener userAttributeListener) {
+                pending.value = userAttributeListener;
+                return null;
+            }
+        };
+        Mockito.when(MParticle.getInstance().Identity().getCurrentUser()).thenReturn(user);
+        OptimizelyClient optimizelyClient = Mockito.mock(OptimizelyClient.class);
+        Mockito.when(optimizelyClient.isValid()).thenReturn(true);
+        Mockito.when(optimizelyClient.getProjectConfig()).thenReturn(createProjectConfig("Tracked"));
+        Variation variation = Mockito.mock(Variation.class);
+        Mockito.when(optimizelyClient.getVariation(Mockito.eq("experiment"), Mockito.anyString(), Mockito.any(Map.class))).thenReturn(variation);
+        OptimizelyKit.setOptimizelyClient(optimizelyClient);
+        try {
+            OptimizelyKit optimizelyKit = new MockOptimizelyKit();
+            assertNull(optimizelyKit.getVariation("experiment"));
+            assertNull(optimizelyKit.getVariation("experiment"));
+            assertTrue(pending.value != null);
+            assertEquals(Integer.valueOf(0), synchronousFetches.value);
+
+            pending.value.onUserAttributesReceived(new HashMap<String, String>(), new HashMap<String, List<String>>(), user.getId());
+            assertSame(variation, optimizelyKit.getVariation("experiment"));
+            assertEquals(Integer.valueOf(0), synchronousFetches.value);
+        } finally {
+            OptimizelyKit.setOptimizelyClient(null);
+        }
+    }
+
+    private ProjectConfig createProjectConfig(String... eventKeys) {
+        List<EventType> eventTypes = new ArrayList<>();
+        for (String eventKey : eventKeys) {
+            EventType eventType = Mockito.mock(EventType.class);
+            Mockito.when(eventType.getKey()).thenReturn(eventKey);
+            eventTypes.add(eventType);
+        }
+        ProjectConfig projectConfig = Mockito.mock(ProjectConfig.class);
+        Mockito.when(projectConfig.getEventTypes()).thenReturn(eventTypes);
+        return projectConfig;
+    }
+
     private int invocationCount(Object object, String methodName) {
         Collection<Invocation> invocationList = Mockito.mockingDetails(object).getInvocations();
 
@@ -0,0 +1,131 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueueReplayerTests {
+
+    @Test
+    public void testReplaysInChunks() throws InterruptedException {
+        TestTarget target = new TestTarget(new InMemoryEventStore(100));
+        for (int i = 0; i < 95; i++) {
+            target.queue.offer(createEvent(i));
+        }
+        QueueReplayer replayer = new QueueReplayer(target);
+        replayer.configure(10, 1);
+        replayer.start();
+        assertTrue(replayer.awaitIdle(10, TimeUnit.SECONDS));
+        assertFalse(replayer.isReplaying());
+        assertEquals(95, target.replayed.size());
+        for (int i = 0; i < 95; i++) {
+            assertEquals(String.valueOf(i), target.replayed.get(i).eventName);
+        }
+        assertEquals(95, replayer.getReplayedCount());
+        assertEquals(1, target.finished.get());
+        assertTrue(target.queue.isEmpty());
+        replayer.shutdown();
+    }
+
+    /**
+     * Events queued by a producer while the replay is in progress should be replayed after the
+     * ones that were already pending
+     */
+    @Test
+    public void testEventsQueuedDuringReplay() throws InterruptedException {
+        final TestTarget target = new TestTarget(new InMemoryEventStore(10000));
+        for (int i = 0; i < 100; i++) {
+            target.queue.offer(createEvent(i));
+        }
+        final QueueReplayer replayer = new QueueReplayer(target);
+        replayer.configure(5, 1);
+        replayer.hold();
+        final CountDownLatch produced = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 100; i < 200; i++) {
+                    //the same check OptimizelyKit.logOptimizelyEvent() makes
+                    if (replayer.isReplaying()) {
+                        target.queue.offer(createEvent(i));
+                        if (!replayer.isReplaying()) {
+                            replayer.start();
+                        }
+                    } else {
+                        target.replay(createEvent(i));
+                    }
+                }
+                produced.countDown();
+            }
+        }).start();
+        replayer.start();
+        assertTrue(produced.await(10, TimeUnit.SECONDS));
+        assertTrue(replayer.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(200, target.replayed.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(String.valueOf(i), target.replayed.get(i).eventName);
+        }
+        replayer.shutdown();
+    }
+
+    @Test
+    public void testNotReady() throws InterruptedException {
+        TestTarget target = new TestTarget(new InMemoryEventStore(10));
+        target.ready = false;
+        target.queue.offer(createEvent(0));
+        QueueReplayer replayer = new QueueReplayer(target);
+        replayer.start();
+        assertTrue(replayer.awaitIdle(10, TimeUnit.SECONDS));
+        assertFalse(replayer.isReplaying());
+        assertEquals(0, target.replayed.size());
+        assertEquals(1, target.queue.size());
+        replayer.shutdown();
+    }
+
+    private static OptimizelyKit.OptimizelyEvent createEvent(int index) {
+        OptimizelyKit.OptimizelyEvent event = new OptimizelyKit.OptimizelyEvent();
+        event.eventName = String.valueOf(index);
+        event.userId = "user";
+        return event;
+    }
+
+    private static class TestTarget implements QueueReplayer.Target {
+        final PendingEventStore queue;
+        final List<OptimizelyKit.OptimizelyEvent> replayed = Collections.synchronizedList(new ArrayList<OptimizelyKit.OptimizelyEvent>());
+        final AtomicInteger finished = new AtomicInteger();
+        volatile boolean ready = true;
+
+        TestTarget(PendingEventStore queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public PendingEventStore getPendingEventStore() {
+            return queue;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void replay(OptimizelyKit.OptimizelyEvent event) {
+            replayed.add(event);
+        }
+
+        @Override
+        public void onReplayFinished(long replayed, long durationNanos) {
+            finished.incrementAndGet();
+        }
+    }
+}
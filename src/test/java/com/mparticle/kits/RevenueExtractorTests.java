@@ -0,0 +1,80 @@
+package com.mparticle.kits;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RevenueExtractorTests {
+
+    /**
+     * Totals should come out as exact cents, where (int) (total * 100) would be a cent short
+     */
+    @Test
+    public void testExactCents() {
+        assertEquals(1999, RevenueExtractor.parseCents("19.99"));
+        assertEquals(4550, RevenueExtractor.parseCents("45.5"));
+        assertEquals(57, RevenueExtractor.parseCents("0.57"));
+        assertEquals(100, RevenueExtractor.parseCents("1"));
+        assertEquals(0, RevenueExtractor.parseCents("0.0"));
+        assertEquals(-1999, RevenueExtractor.parseCents("-19.99"));
+        assertEquals(1999, RevenueExtractor.parseCents(" +19.99 "));
+        for (int cents = 0; cents < 100000; cents += 7) {
+            assertEquals(cents, RevenueExtractor.parseCents(Double.toString(cents / 100.0)));
+        }
+    }
+
+    @Test
+    public void testRoundingAndExponents() {
+        assertEquals(2000, RevenueExtractor.parseCents("19.995"));
+        assertEquals(1999, RevenueExtractor.parseCents("19.9949"));
+        assertEquals(-2000, RevenueExtractor.parseCents("-19.995"));
+        assertEquals(1000000000L, RevenueExtractor.parseCents("1.0E7"));
+        assertEquals(1234, RevenueExtractor.parseCents("1.234E1"));
+        assertEquals(0, RevenueExtractor.parseCents("1.0E-4"));
+        assertEquals(1, RevenueExtractor.parseCents("5.0E-3"));
+        assertEquals(Long.MAX_VALUE / 100 * 100, RevenueExtractor.parseCents(String.valueOf(Long.MAX_VALUE / 100)));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents(String.valueOf(Long.MAX_VALUE)));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("1.0E300"));
+    }
+
+    @Test
+    public void testLocaleFormats() {
+        assertEquals(123456, RevenueExtractor.parseCents("1,234.56"));
+        assertEquals(123456, RevenueExtractor.parseCents("1.234,56"));
+        assertEquals(123456, RevenueExtractor.parseCents("1 234,56"));
+        assertEquals(123456, RevenueExtractor.parseCents("1 234,56"));
+        assertEquals(123456, RevenueExtractor.parseCents("1'234.56"));
+        assertEquals(1999, RevenueExtractor.parseCents("19,99"));
+        assertEquals(123400, RevenueExtractor.parseCents("1,234"));
+        assertEquals(123456700, RevenueExtractor.parseCents("1,234,567"));
+        assertEquals(123456700, RevenueExtractor.parseCents("1.234.567"));
+        assertEquals(123456789, RevenueExtractor.parseCents("1.234.567,89"));
+        assertEquals(12345678, RevenueExtractor.parseCents("1,23,456.78"));
+    }
+
+    @Test
+    public void testInvalid() {
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents(null));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents(""));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("  "));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("-"));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("abc"));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("$19.99"));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("1,234.56.7"));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("19.9,9"));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("1,2,3"));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("1.0E"));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("1..5"));
+        assertEquals(RevenueExtractor.INVALID, RevenueExtractor.parseCents("NaN"));
+    }
+
+    @Test
+    public void testPlusOneName() {
+        assertNull(RevenueExtractor.plusOneName(null));
+        String name = RevenueExtractor.plusOneName("purchase");
+        assertEquals(String.format(CommerceEventUtils.PLUSONE_NAME, "purchase"), name);
+        assertSame(name, RevenueExtractor.plusOneName("purchase"));
+    }
+}